@@ -0,0 +1,241 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.NameValuePair;
+
+/**
+ * A compact binary alternative to the form encoded request body. Field names
+ * are replaced by the ids of {@link ReportField} and values are stored as
+ * raw UTF-8, so stack traces aren't inflated by percent-encoding.
+ * <p>
+ * Layout: <tt>[int magic "AERB"][byte version][byte flags]</tt> followed by
+ * the body, which is deflated if {@link #FLAG_DEFLATE} is set. The body is
+ * <tt>[varint reports]</tt> and per report <tt>[varint fields]</tt> and per
+ * field <tt>[varint id]</tt>, the name as <tt>[varint length][UTF-8]</tt> if
+ * the id is 0 (fields without an id like <tt>reportId</tt>), and the value as
+ * <tt>[varint length + 1][UTF-8]</tt> where a length of 0 means <tt>null</tt>.
+ * Varints are unsigned LEB128.
+ * <p>
+ * The decoder has no Android dependencies, but it resolves the field ids
+ * through {@link ReportField} and the class refers to HttpCore's
+ * {@link NameValuePair}, so collectors need the library classes and HttpCore
+ * on the classpath, like the <tt>LocalCollector</tt> of the load test.
+ */
+public final class BinaryReportFormat {
+
+	public static final String CONTENT_TYPE = "application/x-error-report";
+
+	static final int MAGIC = 0x41455242; // "AERB"
+	static final int VERSION = 1;
+	static final int FLAG_DEFLATE = 0x01;
+
+	private static final String UTF_8 = "UTF-8";
+
+	/**
+	 * Protects the decoder against absurd lengths in corrupt data.
+	 */
+	private static final int MAXIMUM_STRING_BYTES = 16 * 1024 * 1024;
+
+	private BinaryReportFormat() {
+	}
+
+	/**
+	 * Encodes the given reports.
+	 *
+	 * @param deflate Whether the body is compressed
+	 */
+	static byte[] encode(List<List<NameValuePair>> reports, boolean deflate) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		encode(reports, deflate, bytes);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encodes the given reports onto a stream without holding the encoded
+	 * reports in memory. The stream is neither flushed nor closed.
+	 *
+	 * @param deflate Whether the body is compressed
+	 */
+	static void encode(List<List<NameValuePair>> reports, boolean deflate, OutputStream stream) throws IOException {
+		stream.write(MAGIC >>> 24);
+		stream.write(MAGIC >>> 16);
+		stream.write(MAGIC >>> 8);
+		stream.write(MAGIC);
+		stream.write(VERSION);
+		stream.write(deflate ? FLAG_DEFLATE : 0);
+		Deflater deflater = deflate ? new Deflater() : null;
+		try {
+			DeflaterOutputStream deflaterStream = deflate ? new DeflaterOutputStream(stream, deflater) : null;
+			OutputStream out = new StreamingReportEntity.Buffer(deflate ? deflaterStream : stream);
+			writeVarint(out, reports.size());
+			for (List<NameValuePair> report : reports) {
+				writeVarint(out, report.size());
+				for (NameValuePair field : report) {
+					ReportField known = ReportField.forName(field.getName());
+					if (known != null) {
+						writeVarint(out, known.id);
+					} else {
+						writeVarint(out, 0);
+						writeString(out, field.getName(), 0);
+					}
+					if (field.getValue() == null) {
+						writeVarint(out, 0);
+					} else {
+						writeString(out, field.getValue(), 1);
+					}
+				}
+			}
+			out.flush();
+			if (deflate) deflaterStream.finish();
+		} finally {
+			if (deflater != null) deflater.end();
+		}
+	}
+
+	/**
+	 * Decodes a request body.
+	 *
+	 * @return The reports with their fields in the order they have been sent
+	 * @throws IOException If the data is no valid report or truncated
+	 */
+	public static List<Map<String, String>> decode(InputStream in) throws IOException {
+		DataInputStream header = new DataInputStream(in);
+		if (header.readInt() != MAGIC) throw new IOException("Not a binary error report");
+		int version = header.readUnsignedByte();
+		if (version != VERSION) throw new IOException("Unsupported version " + version);
+		int flags = header.readUnsignedByte();
+		DataInputStream body = new DataInputStream((flags & FLAG_DEFLATE) != 0 ? new InflaterInputStream(in) : in);
+		int count = readVarint(body);
+		List<Map<String, String>> reports = new ArrayList<Map<String, String>>(Math.min(count, 64));
+		for (int i = 0; i < count; i++) {
+			int fields = readVarint(body);
+			Map<String, String> report = new LinkedHashMap<String, String>();
+			for (int j = 0; j < fields; j++) {
+				int id = readVarint(body);
+				String name;
+				if (id == 0) {
+					name = readString(body, readVarint(body));
+				} else {
+					ReportField field = ReportField.forId(id);
+					// Fields of newer versions are kept under their id
+					name = field != null ? field.fieldName : String.valueOf(id);
+				}
+				int length = readVarint(body);
+				report.put(name, length == 0 ? null : readString(body, length - 1));
+			}
+			reports.add(report);
+		}
+		return reports;
+	}
+
+	private static void writeVarint(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Writes <tt>[varint length + lengthOffset][UTF-8]</tt> like
+	 * <tt>getBytes("UTF-8")</tt> would, but without copying the string.
+	 */
+	private static void writeString(OutputStream out, String value, int lengthOffset) throws IOException {
+		int length = value.length();
+		int bytes = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				bytes++;
+			} else if (c < 0x800) {
+				bytes += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				bytes += 4;
+				i++;
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				// Unpaired surrogates are replaced by '?'
+				bytes++;
+			} else {
+				bytes += 3;
+			}
+		}
+		writeVarint(out, bytes + lengthOffset);
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				out.write(c);
+			} else if (c < 0x800) {
+				out.write(0xC0 | (c >> 6));
+				out.write(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				out.write(0xF0 | (codePoint >> 18));
+				out.write(0x80 | ((codePoint >> 12) & 0x3F));
+				out.write(0x80 | ((codePoint >> 6) & 0x3F));
+				out.write(0x80 | (codePoint & 0x3F));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				out.write('?');
+			} else {
+				out.write(0xE0 | (c >> 12));
+				out.write(0x80 | ((c >> 6) & 0x3F));
+				out.write(0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private static int readVarint(DataInputStream in) throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.read();
+			if (b < 0) throw new EOFException();
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (result < 0) throw new IOException("Invalid length");
+				return result;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static String readString(DataInputStream in, int length) throws IOException {
+		if (length > MAXIMUM_STRING_BYTES) throw new IOException("String too long: " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Ring buffer of the most recent app events which are attached to reports.
+ * Recording is lock-free and doesn't allocate: every breadcrumb gets a
+ * sequence number from a counter and is written into a preallocated slot.
+ * <p>
+ * A slot is guarded by its own sequence, which is odd while the slot is
+ * being written and <tt>2 * (number + 1)</tt> once breadcrumb
+ * <tt>number</tt> is complete. A writer claims the slot with a
+ * compare-and-set and drops its breadcrumb if another writer holds it, which
+ * only happens if more writers than slots are racing. A snapshot checks the
+ * sequence before and after copying a slot and skips it if it changed.
+ */
+final class Breadcrumbs {
+
+	/**
+	 * Maximum number of characters of a message in a snapshot.
+	 */
+	static final int MAXIMUM_MESSAGE_LENGTH = 256;
+
+	private static final AtomicLongFieldUpdater<Slot> SEQUENCE = AtomicLongFieldUpdater.newUpdater(Slot.class, "sequence");
+
+	private final Slot[] slots;
+	private final int mask;
+	private final AtomicLong next = new AtomicLong();
+
+	/**
+	 * @param capacity The number of breadcrumbs kept, rounded up to a power of two
+	 */
+	Breadcrumbs(int capacity) {
+		int size = 1;
+		while (size < capacity) size <<= 1;
+		this.slots = new Slot[size];
+		this.mask = size - 1;
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+	}
+
+	int getCapacity() {
+		return slots.length;
+	}
+
+	void record(long time, String category, String message) {
+		long number = next.getAndIncrement();
+		Slot slot = slots[(int) number & mask];
+		long sequence = slot.sequence;
+		if ((sequence & 1) != 0 || !SEQUENCE.compareAndSet(slot, sequence, 2 * number + 1)) {
+			// Another writer is lapping this one; losing one breadcrumb is fine
+			return;
+		}
+		slot.time = time;
+		slot.category = category;
+		slot.message = message;
+		slot.sequence = 2 * number + 2;
+	}
+
+	/**
+	 * Returns the complete breadcrumbs, oldest first, one per line formatted
+	 * as <tt>HH:mm:ss.SSS category: message</tt>.
+	 *
+	 * @return The breadcrumbs or <tt>null</tt> if nothing has been recorded
+	 */
+	String snapshot() {
+		return snapshot(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the breadcrumbs recorded until the given time, e.g. those
+	 * preceding an error which is reported later on.
+	 *
+	 * @see #snapshot()
+	 */
+	String snapshot(long until) {
+		long end = next.get();
+		long start = Math.max(0, end - slots.length);
+		if (start == end) return null;
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+		StringBuilder result = new StringBuilder();
+		for (long number = start; number < end; number++) {
+			Slot slot = slots[(int) number & mask];
+			long sequence = slot.sequence;
+			if (sequence != 2 * number + 2) continue;
+			long time = slot.time;
+			String category = slot.category;
+			String message = slot.message;
+			if (slot.sequence != sequence || time > until) continue;
+			if (result.length() > 0) result.append('\n');
+			result.append(format.format(new Date(time)));
+			if (category != null) result.append(' ').append(category).append(':');
+			if (message != null) {
+				result.append(' ');
+				if (message.length() > MAXIMUM_MESSAGE_LENGTH) {
+					result.append(message, 0, MAXIMUM_MESSAGE_LENGTH).append("...");
+				} else {
+					result.append(message);
+				}
+			}
+		}
+		return result.length() > 0 ? result.toString() : null;
+	}
+
+	private static final class Slot {
+
+		volatile long sequence;
+		// Volatile, so the second read of the sequence can't move above them
+		volatile long time;
+		volatile String category;
+		volatile String message;
+
+	}
+
+}
@@ -0,0 +1,46 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Uploads pending error reports once the network is back (or the device is
+ * charging if uploads are deferred). It is only enabled by the
+ * {@link UploadScheduler} while reports are waiting and disables itself
+ * again.
+ */
+public class ConnectivityReceiver extends BroadcastReceiver {
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		UploadScheduler scheduler = new UploadScheduler(context, ReporterConfig.get(context));
+		if (!scheduler.canUploadJournal()) return;
+		UploadScheduler.setReceiverEnabled(context, false);
+		Intent drain = new Intent(ExceptionReportService.ACTION_DRAIN_JOURNAL);
+		drain.setClass(context, ExceptionReportService.class);
+		context.startService(drain);
+	}
+
+}
@@ -0,0 +1,338 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Crash capture which works when the process is dying, e.g. because of an
+ * {@link OutOfMemoryError}. Everything it needs (the byte buffer, the
+ * checksum and the open file) is allocated when the reporter is registered.
+ * An uncaught exception and its cause chain are written straight into the
+ * buffer, which is then written to disk. If the regular reporting succeeds
+ * afterwards, the capture is cleared again. Otherwise the
+ * {@link ExceptionReportService} turns it into a report later on.
+ * <p>
+ * Layout of a capture: <tt>[int magic][int length][int crc32][long time]
+ * [string thread][byte throwables]</tt> followed by <tt>[string class]
+ * [string message][short frames]</tt> and per frame <tt>[string class]
+ * [string method][string file][int line]</tt>. Strings are stored as a
+ * short length followed by UTF-8 bytes; a length of -1 means <tt>null</tt>.
+ */
+final class CrashCapture {
+
+	static final String FILE_NAME = "errorreporter.crash";
+
+	/**
+	 * Suffix of captures which are waiting to be recovered by the service.
+	 */
+	static final String PENDING_SUFFIX = ".pending";
+
+	private static final int MAGIC = 0x41455243; // "AERC"
+	private static final int HEADER_SIZE = 12;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAXIMUM_CAUSE_DEPTH = 16;
+	private static final int MAXIMUM_STRING_BYTES = 4096;
+
+	/**
+	 * Memory which is released when an {@link OutOfMemoryError} is reported,
+	 * so the regular reporting has a chance to succeed.
+	 */
+	private static final int RESERVE_SIZE = 32 * 1024;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final CRC32 crc = new CRC32();
+	private final RandomAccessFile out;
+	private byte[] reserve = new byte[RESERVE_SIZE];
+	private int position;
+
+	/**
+	 * Prepares a capture in the given directory. An existing capture from a
+	 * previous process is moved aside first, so the service can recover it.
+	 *
+	 * @return <tt>true</tt> if a capture of a previous process has been found
+	 */
+	static boolean movePrevious(File directory) {
+		File file = new File(directory, FILE_NAME);
+		if (file.length() <= HEADER_SIZE) return false;
+		return file.renameTo(new File(directory, FILE_NAME + "." + ReportJournal.newId() + PENDING_SUFFIX));
+	}
+
+	/**
+	 * @return All captures which are waiting to be recovered
+	 */
+	static File[] listPending(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) return new File[0];
+		List<File> result = new ArrayList<File>();
+		for (File file : files) {
+			if (file.getName().startsWith(FILE_NAME) && file.getName().endsWith(PENDING_SUFFIX)) {
+				result.add(file);
+			}
+		}
+		return result.toArray(new File[result.size()]);
+	}
+
+	CrashCapture(File directory) throws IOException {
+		this.out = new RandomAccessFile(new File(directory, FILE_NAME), "rw");
+	}
+
+	/**
+	 * Writes the exception into the preallocated buffer and then to disk.
+	 * Apart from the stack trace arrays the VM hands out, this doesn't
+	 * allocate any memory.
+	 */
+	synchronized void capture(Thread thread, Throwable ex, long time) throws IOException {
+		if (ex instanceof OutOfMemoryError) {
+			reserve = null;
+		}
+		position = HEADER_SIZE;
+		writeLong(time);
+		writeString(thread.getName());
+		int countPosition = position++;
+		int count = 0;
+		for (Throwable current = ex; current != null && count < MAXIMUM_CAUSE_DEPTH; current = current.getCause()) {
+			// Anything which doesn't fit into the buffer is dropped as a whole
+			int throwableStart = position;
+			writeString(current.getClass().getName());
+			writeString(current.getMessage());
+			int framesPosition = position;
+			position += 2;
+			if (position > BUFFER_SIZE) {
+				position = throwableStart;
+				break;
+			}
+			StackTraceElement[] frames = current.getStackTrace();
+			int frameCount = 0;
+			for (int i = 0; i < frames.length && frameCount < 0xFFFF; i++) {
+				int frameStart = position;
+				StackTraceElement frame = frames[i];
+				writeString(frame.getClassName());
+				writeString(frame.getMethodName());
+				writeString(frame.getFileName());
+				writeInt(frame.getLineNumber());
+				if (position > BUFFER_SIZE) {
+					position = frameStart;
+					break;
+				}
+				frameCount++;
+			}
+			buffer[framesPosition] = (byte) (frameCount >>> 8);
+			buffer[framesPosition + 1] = (byte) frameCount;
+			count++;
+			if (current.getCause() == current) break;
+		}
+		buffer[countPosition] = (byte) count;
+		int length = position;
+		crc.reset();
+		crc.update(buffer, HEADER_SIZE, length - HEADER_SIZE);
+		position = 0;
+		writeInt(MAGIC);
+		writeInt(length);
+		writeInt((int) crc.getValue());
+		out.seek(0);
+		out.write(buffer, 0, length);
+		out.setLength(length);
+		out.getFD().sync();
+	}
+
+	/**
+	 * Removes the capture after it has been reported the regular way.
+	 */
+	synchronized void clear() throws IOException {
+		out.setLength(0);
+	}
+
+	/**
+	 * Reads a capture written by {@link #capture(Thread, Throwable, long)}.
+	 *
+	 * @return The captured exception or <tt>null</tt> if the file is incomplete or corrupt
+	 */
+	static Captured read(File file) throws IOException {
+		byte[] data = new byte[(int) Math.min(file.length(), BUFFER_SIZE)];
+		FileInputStream fileIn = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < data.length) {
+				int count = fileIn.read(data, read, data.length - read);
+				if (count < 0) break;
+				read += count;
+			}
+		} finally {
+			fileIn.close();
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		try {
+			if (in.readInt() != MAGIC) return null;
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length < HEADER_SIZE || length > data.length) return null;
+			CRC32 crc = new CRC32();
+			crc.update(data, HEADER_SIZE, length - HEADER_SIZE);
+			if ((int) crc.getValue() != checksum) return null;
+
+			long time = in.readLong();
+			String threadName = readString(in);
+			int count = in.readUnsignedByte();
+			CapturedThrowable first = null;
+			CapturedThrowable last = null;
+			for (int i = 0; i < count; i++) {
+				String className = readString(in);
+				String message = readString(in);
+				StackTraceElement[] frames = new StackTraceElement[in.readUnsignedShort()];
+				for (int j = 0; j < frames.length; j++) {
+					String declaringClass = readString(in);
+					String methodName = readString(in);
+					String fileName = readString(in);
+					frames[j] = new StackTraceElement(declaringClass, methodName, fileName, in.readInt());
+				}
+				CapturedThrowable throwable = new CapturedThrowable(className, message);
+				throwable.setStackTrace(frames);
+				if (last != null) last.initCause(throwable);
+				if (first == null) first = throwable;
+				last = throwable;
+			}
+			return first != null ? new Captured(time, threadName, first) : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The name of the exception class, also for recovered exceptions
+	 */
+	static String getClassName(Throwable ex) {
+		if (ex instanceof CapturedThrowable) return ((CapturedThrowable) ex).className;
+		return ex.getClass().getName();
+	}
+
+	/**
+	 * A capture read back from disk.
+	 */
+	static final class Captured {
+
+		final long time;
+		final String threadName;
+		final Throwable exception;
+
+		Captured(long time, String threadName, Throwable exception) {
+			this.time = time;
+			this.threadName = threadName;
+			this.exception = exception;
+		}
+
+	}
+
+	/**
+	 * Stands in for a captured exception whose class might not be loadable.
+	 * Prints exactly like the original.
+	 */
+	static final class CapturedThrowable extends Throwable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String className;
+
+		CapturedThrowable(String className, String message) {
+			super(message);
+			this.className = className;
+		}
+
+		@Override
+		public String toString() {
+			String message = getLocalizedMessage();
+			return message != null ? className + ": " + message : className;
+		}
+
+	}
+
+	private void writeString(String value) {
+		if (value == null) {
+			writeShort(-1);
+			return;
+		}
+		int lengthPosition = position;
+		position += 2;
+		int start = position;
+		int length = value.length();
+		for (int i = 0; i < length && position - start < MAXIMUM_STRING_BYTES - 3; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				writeByte(c);
+			} else if (c < 0x800) {
+				writeByte(0xC0 | (c >> 6));
+				writeByte(0x80 | (c & 0x3F));
+			} else {
+				// Surrogates are written individually, which is what DataInput expects
+				writeByte(0xE0 | (c >> 12));
+				writeByte(0x80 | ((c >> 6) & 0x3F));
+				writeByte(0x80 | (c & 0x3F));
+			}
+		}
+		int bytes = position - start;
+		if (lengthPosition + 2 <= BUFFER_SIZE) {
+			buffer[lengthPosition] = (byte) (bytes >>> 8);
+			buffer[lengthPosition + 1] = (byte) bytes;
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		short length = in.readShort();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		// Same encoding as DataOutput.writeUTF without the length prefix
+		byte[] utf = new byte[length + 2];
+		utf[0] = (byte) (length >>> 8);
+		utf[1] = (byte) length;
+		System.arraycopy(bytes, 0, utf, 2, length);
+		return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+	}
+
+	private void writeLong(long value) {
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+
+	private void writeInt(int value) {
+		writeShort(value >>> 16);
+		writeShort(value);
+	}
+
+	private void writeShort(int value) {
+		writeByte(value >>> 8);
+		writeByte(value);
+	}
+
+	private void writeByte(int value) {
+		if (position < BUFFER_SIZE) buffer[position] = (byte) value;
+		position++;
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Environment;
+import android.os.StatFs;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+
+/**
+ * Collects the state of the device and the app for a report. Static facts
+ * (build, package, screen, storage size) are collected once per process.
+ * Dynamic facts (heap, native heap, free storage, uptime) are sampled when
+ * a report is created, which only reads a few counters. Both are passed to
+ * the {@link ExceptionReportService} as extras named after their
+ * {@link ReportField} and stored in the journal with the report, so they
+ * describe the app at the time of the crash even if it has been updated
+ * before the report is sent.
+ */
+final class DeviceState {
+
+	static final String EXTRA_PREFIX = ExceptionReportService.class.getPackage().getName().concat(".extraDevice.");
+
+	static final ReportField[] STATIC_FIELDS = {
+		ReportField.APP_VERSION_CODE,
+		ReportField.APP_VERSION_NAME,
+		ReportField.APP_PACKAGE_NAME,
+		ReportField.DEV_MODEL,
+		ReportField.DEV_BRAND,
+		ReportField.DEV_SDK,
+		ReportField.DEV_RELEASE_VERSION,
+		ReportField.DEV_BUILD_FINGERPRINT,
+		ReportField.DEV_SCREEN,
+	};
+
+	static final ReportField[] DYNAMIC_FIELDS = {
+		ReportField.HEAP_USED,
+		ReportField.HEAP_MAX,
+		ReportField.NATIVE_HEAP_USED,
+		ReportField.NATIVE_HEAP_SIZE,
+		ReportField.DEV_UPTIME,
+	};
+
+	private static Map<ReportField, String> staticFacts;
+	private static StatFs dataStatFs;
+	private static long totalStorage = -1;
+
+	private DeviceState() {
+	}
+
+	/**
+	 * @return The facts which don't change while the process is running
+	 */
+	static synchronized Map<ReportField, String> getStatic(Context context) {
+		if (staticFacts != null) return staticFacts;
+		Map<ReportField, String> facts = new EnumMap<ReportField, String>(ReportField.class);
+		try {
+			PackageInfo packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+			facts.put(ReportField.APP_VERSION_CODE, String.valueOf(packageInfo.versionCode));
+			facts.put(ReportField.APP_VERSION_NAME, packageInfo.versionName);
+			facts.put(ReportField.APP_PACKAGE_NAME, packageInfo.packageName);
+		} catch (NameNotFoundException e) {}
+		facts.put(ReportField.DEV_MODEL, Build.MODEL);
+		facts.put(ReportField.DEV_BRAND, Build.BRAND);
+		facts.put(ReportField.DEV_SDK, Build.VERSION.SDK);
+		facts.put(ReportField.DEV_RELEASE_VERSION, Build.VERSION.RELEASE);
+		facts.put(ReportField.DEV_BUILD_FINGERPRINT, Build.FINGERPRINT);
+		DisplayMetrics display = context.getResources() != null ? context.getResources().getDisplayMetrics() : null;
+		if (display != null) {
+			// Independent of the current orientation
+			int shorter = Math.min(display.widthPixels, display.heightPixels);
+			int longer = Math.max(display.widthPixels, display.heightPixels);
+			facts.put(ReportField.DEV_SCREEN, shorter + "x" + longer + "@" + display.density);
+		}
+		staticFacts = facts;
+		return facts;
+	}
+
+	/**
+	 * @return The current heap, native heap and uptime
+	 */
+	static Map<ReportField, String> sampleDynamic() {
+		Map<ReportField, String> facts = new EnumMap<ReportField, String>(ReportField.class);
+		Runtime runtime = Runtime.getRuntime();
+		facts.put(ReportField.HEAP_USED, String.valueOf(runtime.totalMemory() - runtime.freeMemory()));
+		facts.put(ReportField.HEAP_MAX, String.valueOf(runtime.maxMemory()));
+		facts.put(ReportField.NATIVE_HEAP_USED, String.valueOf(Debug.getNativeHeapAllocatedSize()));
+		facts.put(ReportField.NATIVE_HEAP_SIZE, String.valueOf(Debug.getNativeHeapSize()));
+		facts.put(ReportField.DEV_UPTIME, String.valueOf(SystemClock.elapsedRealtime()));
+		return facts;
+	}
+
+	/**
+	 * @return The free bytes of the internal storage
+	 */
+	static synchronized long getAvailableStorage() {
+		String path = Environment.getDataDirectory().getPath();
+		if (dataStatFs == null) {
+			dataStatFs = new StatFs(path);
+		} else {
+			dataStatFs.restat(path);
+		}
+		// The block counts are ints, their product easily overflows one
+		return (long) dataStatFs.getAvailableBlocks() * dataStatFs.getBlockSize();
+	}
+
+	/**
+	 * @return The size of the internal storage in bytes
+	 */
+	static synchronized long getTotalStorage() {
+		if (totalStorage < 0) {
+			StatFs stat = new StatFs(Environment.getDataDirectory().getPath());
+			totalStorage = (long) stat.getBlockCount() * stat.getBlockSize();
+		}
+		return totalStorage;
+	}
+
+	/**
+	 * Adds the static and the dynamic facts to a report intent.
+	 */
+	static void putExtras(Intent intent, Context context) {
+		for (Map.Entry<ReportField, String> fact : getStatic(context).entrySet()) {
+			intent.putExtra(EXTRA_PREFIX.concat(fact.getKey().fieldName), fact.getValue());
+		}
+		for (Map.Entry<ReportField, String> fact : sampleDynamic().entrySet()) {
+			intent.putExtra(EXTRA_PREFIX.concat(fact.getKey().fieldName), fact.getValue());
+		}
+	}
+
+	/**
+	 * Copies the facts of a report intent into the fields stored in the {@link ReportJournal}.
+	 */
+	static void copyExtras(Intent intent, Map<String, String> report) {
+		for (ReportField field : STATIC_FIELDS) {
+			copyExtra(intent, report, EXTRA_PREFIX.concat(field.fieldName));
+		}
+		for (ReportField field : DYNAMIC_FIELDS) {
+			copyExtra(intent, report, EXTRA_PREFIX.concat(field.fieldName));
+		}
+	}
+
+	private static void copyExtra(Intent intent, Map<String, String> report, String extra) {
+		String value = intent.getStringExtra(extra);
+		if (value != null) report.put(extra, value);
+	}
+
+}
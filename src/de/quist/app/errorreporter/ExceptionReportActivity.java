@@ -1,13 +1,15 @@
 package de.quist.app.errorreporter;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
@@ -18,33 +20,63 @@ import android.widget.TextView;
 
 public class ExceptionReportActivity extends Activity {
 
-	private static final String META_DATA_DIALOG_TITLE = ExceptionReportActivity.class.getPackage().getName().concat(".dialogTitle");
-	private static final String META_DATA_DIALOG_TEXT = ExceptionReportActivity.class.getPackage().getName().concat(".dialogText");
-	private static final String META_DATA_DIALOG_ICON = ExceptionReportActivity.class.getPackage().getName().concat(".dialogIcon");
-	private static final String META_DATA_DIALOG_MESSAGE_HINT = ExceptionReportActivity.class.getPackage().getName().concat(".dialogMessageHint");
-	private static final String META_DATA_DIALOG_SEND_BUTTON = ExceptionReportActivity.class.getPackage().getName().concat(".dialogSendButton");
-	private static final String META_DATA_DIALOG_CANCEL_BUTTON = ExceptionReportActivity.class.getPackage().getName().concat(".dialogCancelButton");
-	
-	private static final CharSequence DEFAULT_DIALOG_TITLE = "^1 crashed";
-	private static final CharSequence DEFAULT_DIALOG_TEXT = "^1 crashed because of an unexpected error. Please help fixing the error by sending an error report to the developer.";
-	private static final int DEFAULT_DIALOG_ICON = android.R.drawable.ic_dialog_alert;
-	private static final int DEFAULT_POSITIVE_BUTTON_TEXT = android.R.string.ok;
-	private static final int DEFAULT_NEGATIVE_BUTTON_TEXT = android.R.string.cancel;
 	private static final String TAG = ExceptionReportActivity.class.getSimpleName();
+
+	/**
+	 * Opens the review of all reports awaiting approval.
+	 */
+	static final String ACTION_REVIEW_REPORTS = ExceptionReportActivity.class.getPackage().getName().concat(".actionReviewReports");
+
+	/**
+	 * Maximum number of reports listed in the dialog when reviewing several.
+	 */
+	private static final int MAXIMUM_LISTED_REPORTS = 5;
 	
-	private ApplicationInfo info;
+	private ReporterConfig config;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setTheme(android.R.style.Theme_NoDisplay);
+		config = ReporterConfig.get(this);
+		if (ACTION_REVIEW_REPORTS.equals(getIntent().getAction())) {
+			// The journal is read in the background to keep file I/O off the UI thread
+			new AsyncTask<Void, Void, List<ReportJournal.Record>>() {
+				
+				@Override
+				protected List<ReportJournal.Record> doInBackground(Void... params) {
+					return readAwaitingApproval();
+				}
+				
+				@Override
+				protected void onPostExecute(List<ReportJournal.Record> reviewed) {
+					if (isFinishing()) return;
+					if (reviewed.isEmpty()) {
+						// Already sent or discarded
+						finish();
+						return;
+					}
+					showDialog(reviewed);
+				}
+			}.execute();
+		} else {
+			showDialog(null);
+		}
+	}
+	
+	/**
+	 * Shows the dialog asking to send the report of the intent, or the
+	 * reviewed reports if not <code>null</code>.
+	 */
+	private void showDialog(final List<ReportJournal.Record> reviewed) {
+		CharSequence dialogText = reviewed != null && reviewed.size() > 1 ? getDialogText(reviewed) : getDialogText();
 		AlertDialog.Builder dialog = new AlertDialog.Builder(this);
 		dialog.setTitle(getDialogTitle());
 		dialog.setIcon(getDialogIcon());
 		CharSequence messageHint = getDialogMessageHint();
 		EditText textEdit = null;
 		if (messageHint == null) {
-			dialog.setMessage(getDialogText());
+			dialog.setMessage(dialogText);
 		} else {
 			LinearLayout layout = new LinearLayout(this);
 			float scale = getResources().getDisplayMetrics().density;
@@ -52,7 +84,7 @@ public class ExceptionReportActivity extends Activity {
 			layout.setPadding(padding, padding, padding, padding);
 			layout.setOrientation(LinearLayout.VERTICAL);
 			TextView textView = new TextView(this);
-			textView.setText(getDialogText());
+			textView.setText(dialogText);
 			textView.setTextAppearance(this, android.R.style.TextAppearance_Medium);
 			textView.setPadding(textView.getPaddingLeft() + padding, textView.getPaddingTop(), textView.getPaddingRight() + padding, textView.getPaddingBottom() + padding);
 			layout.addView(textView, LayoutParams.FILL_PARENT, LayoutParams.WRAP_CONTENT);
@@ -66,7 +98,7 @@ public class ExceptionReportActivity extends Activity {
 			
 			@Override
 			public void onClick(DialogInterface dialog, int which) {
-				Intent i = getIntent();
+				Intent i = reviewed != null ? createApprovalIntent(reviewed) : getIntent();
 				i.setClass(ExceptionReportActivity.this, ExceptionReportService.class);
 				if (text != null && !TextUtils.isEmpty(text.getText())) {
 					i.putExtra(ExceptionReportService.EXTRA_EXTRA_MESSAGE, text.getText().toString());
@@ -81,6 +113,11 @@ public class ExceptionReportActivity extends Activity {
 			
 			@Override
 			public void onClick(DialogInterface dialog, int which) {
+				if (reviewed != null) {
+					discardReports(reviewed);
+				} else {
+					discardReport();
+				}
 				dialog.cancel();
 				finish();
 			}
@@ -88,102 +125,92 @@ public class ExceptionReportActivity extends Activity {
 		dialog.show();
 	}
 	
-	private CharSequence getDialogPositiveButtonText() {
-		int resId = DEFAULT_POSITIVE_BUTTON_TEXT;
-		
-		ApplicationInfo info = getPackageApplicationInfo();
-		if (info != null && info.metaData != null && info.metaData.containsKey(META_DATA_DIALOG_SEND_BUTTON)) {
-			try {
-				resId = info.metaData.getInt(META_DATA_DIALOG_SEND_BUTTON);
-			} catch (Exception e) {Log.e(TAG, "Attribute " + META_DATA_DIALOG_SEND_BUTTON + " must be specified using the attribute android:resource", e);}
+	/**
+	 * Lets the service remove the report from the journal, so it won't be
+	 * sent later on.
+	 */
+	private void discardReport() {
+		long reportId = getIntent().getLongExtra(ExceptionReportService.EXTRA_REPORT_ID, -1l);
+		if (reportId == -1l) return;
+		startDiscard(new long[] { reportId });
+	}
+	
+	private List<ReportJournal.Record> readAwaitingApproval() {
+		try {
+			return ExceptionReportService.readAwaitingApproval(this);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read reports awaiting approval", e);
+			return Collections.emptyList();
 		}
-		return getText(resId);
 	}
 	
-	private CharSequence getDialogNegativeButtonText() {
-		int resId = DEFAULT_NEGATIVE_BUTTON_TEXT;
-		
-		ApplicationInfo info = getPackageApplicationInfo();
-		if (info != null && info.metaData != null && info.metaData.containsKey(META_DATA_DIALOG_CANCEL_BUTTON)) {
-			try {
-				resId = info.metaData.getInt(META_DATA_DIALOG_CANCEL_BUTTON);
-			} catch (Exception e) {Log.e(TAG, "Attribute " + META_DATA_DIALOG_CANCEL_BUTTON + " must be specified using the attribute android:resource", e);}
+	/**
+	 * Creates the intent which sends all reviewed reports in one go.
+	 */
+	private Intent createApprovalIntent(List<ReportJournal.Record> reviewed) {
+		long[] ids = new long[reviewed.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = reviewed.get(i).id;
 		}
-		return getText(resId);
+		Intent intent = new Intent(ExceptionReportService.ACTION_SEND_APPROVED_REPORTS);
+		intent.putExtra(ExceptionReportService.EXTRA_REPORT_IDS, ids);
+		return intent;
+	}
+	
+	private void discardReports(List<ReportJournal.Record> reviewed) {
+		long[] ids = new long[reviewed.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = reviewed.get(i).id;
+		}
+		startDiscard(ids);
+	}
+	
+	private void startDiscard(long[] ids) {
+		Intent intent = new Intent(ExceptionReportService.ACTION_DISCARD_REPORTS);
+		intent.setClass(this, ExceptionReportService.class);
+		intent.putExtra(ExceptionReportService.EXTRA_REPORT_IDS, ids);
+		startService(intent);
+	}
+	
+	private CharSequence getDialogPositiveButtonText() {
+		return getText(config.dialogSendButton);
+	}
+	
+	private CharSequence getDialogNegativeButtonText() {
+		return getText(config.dialogCancelButton);
 	}
 
 	private CharSequence getDialogTitle() {
-		CharSequence dialogTitle = DEFAULT_DIALOG_TITLE;
-		
-		PackageManager pm = getPackageManager();
-		ApplicationInfo info = getPackageApplicationInfo();
-		if (info != null) {
-			if (info.metaData != null && info.metaData.containsKey(META_DATA_DIALOG_TITLE)) {
-				try {
-					int resId = info.metaData.getInt(META_DATA_DIALOG_TITLE);
-					dialogTitle = getText(resId);
-				} catch (Exception e) {Log.e(TAG, "Attribute " + META_DATA_DIALOG_TITLE + " must be specified using the attribute android:resource", e);}
-				
-			}
-			return TextUtils.expandTemplate(dialogTitle, pm.getApplicationLabel(info));
-		} else return dialogTitle;
+		return config.getText(this, config.dialogTitle, ReporterConfig.DEFAULT_DIALOG_TITLE);
 	}
 	
 	private CharSequence getDialogText() {
-		CharSequence dialogText = DEFAULT_DIALOG_TEXT;
-		
-		PackageManager pm = getPackageManager();
-		ApplicationInfo info = getPackageApplicationInfo();
-		if (info != null) {
-			if (info.metaData != null && info.metaData.containsKey(META_DATA_DIALOG_TEXT)) {
-				try {
-					int resId = info.metaData.getInt(META_DATA_DIALOG_TEXT);
-					dialogText = getText(resId);
-				} catch (Exception e) {Log.e(TAG, "Attribute " + META_DATA_DIALOG_TEXT + " must be specified using the attribute android:resource", e);}
-				
-			}
-			return TextUtils.expandTemplate(dialogText, pm.getApplicationLabel(info));
-		} else return dialogText;
+		return config.getText(this, config.dialogText, ReporterConfig.DEFAULT_DIALOG_TEXT);
 	}
 	
-	private CharSequence getDialogMessageHint() {
-		CharSequence dialogMessageHint = null;
-		
-		ApplicationInfo info = getPackageApplicationInfo();
-		if (info != null && info.metaData != null && info.metaData.containsKey(META_DATA_DIALOG_MESSAGE_HINT)) {
-			try {
-				int resId = info.metaData.getInt(META_DATA_DIALOG_MESSAGE_HINT);
-				dialogMessageHint = getText(resId);
-			} catch (Exception e) {Log.e(TAG, "Attribute " + META_DATA_DIALOG_MESSAGE_HINT + " must be specified using the attribute android:resource", e);}
-			
+	/**
+	 * @return The dialog text followed by the exception classes of the reviewed reports
+	 */
+	private CharSequence getDialogText(List<ReportJournal.Record> reviewed) {
+		StringBuilder text = new StringBuilder(getDialogText());
+		text.append("\n");
+		for (int i = 0; i < reviewed.size() && i < MAXIMUM_LISTED_REPORTS; i++) {
+			ReportJournal.Record record = reviewed.get(i);
+			text.append("\n").append(record.get(ExceptionReportService.EXTRA_EXCEPTION_CLASS));
+			if (record.occurrences > 1) text.append(" (").append(record.occurrences).append("x)");
 		}
-		return dialogMessageHint;
+		if (reviewed.size() > MAXIMUM_LISTED_REPORTS) {
+			text.append("\n+").append(reviewed.size() - MAXIMUM_LISTED_REPORTS);
+		}
+		return text;
 	}
 	
-	private Drawable getDialogIcon() {
-		int dialogIcon = DEFAULT_DIALOG_ICON;
-		
-		if (info != null && info.metaData != null && info.metaData.containsKey(META_DATA_DIALOG_ICON)) {
-			try {
-				dialogIcon = info.metaData.getInt(META_DATA_DIALOG_ICON);
-			} catch (Exception e) {Log.e(TAG, "Attribute " + META_DATA_DIALOG_ICON + " must be specified using the attribute android:resource", e);}
-		}
-		return getResources().getDrawable(dialogIcon);
+	private CharSequence getDialogMessageHint() {
+		return config.dialogMessageHint != 0 ? getText(config.dialogMessageHint) : null;
 	}
 	
-	private ApplicationInfo getPackageApplicationInfo() {
-		if (info != null) return info;
-		else {
-			PackageManager pm = getPackageManager();
-			ApplicationInfo info;
-			try {
-				info = pm.getApplicationInfo(getPackageName(), PackageManager.GET_META_DATA);
-				this.info = info;
-				return info;
-			} catch (NameNotFoundException e) {
-				return null;
-			}
-		}
+	private Drawable getDialogIcon() {
+		return getResources().getDrawable(config.dialogIcon);
 	}
 	
 }
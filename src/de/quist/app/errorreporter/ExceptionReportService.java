@@ -20,32 +20,41 @@
  */
 package de.quist.app.errorreporter;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLException;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.protocol.HTTP;
+import org.json.JSONArray;
+import org.json.JSONException;
 
-import android.app.AlarmManager;
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.Uri;
 import android.os.SystemClock;
@@ -54,6 +63,9 @@ import android.util.Log;
 public class ExceptionReportService extends ReportingIntentService {
 
 	static final String ACTION_SEND_REPORT = ExceptionReportService.class.getPackage().getName().concat(".actionSendReport");
+	static final String ACTION_SEND_APPROVED_REPORTS = ExceptionReportService.class.getPackage().getName().concat(".actionSendApprovedReports");
+	static final String ACTION_DRAIN_JOURNAL = ExceptionReportService.class.getPackage().getName().concat(".actionDrainJournal");
+	static final String ACTION_DISCARD_REPORTS = ExceptionReportService.class.getPackage().getName().concat(".actionDiscardReports");
 
 	static final String EXTRA_STACK_TRACE = ExceptionReportService.class.getPackage().getName().concat(".extraStackTrace");
 	static final String EXTRA_EXCEPTION_CLASS = ExceptionReportService.class.getPackage().getName().concat(".extraExceptionClass");
@@ -64,108 +76,849 @@ public class ExceptionReportService extends ReportingIntentService {
 	static final String EXTRA_MANUAL_REPORT = ExceptionReportService.class.getPackage().getName().concat(".extraManualReport");
 	static final String EXTRA_AVAILABLE_MEMORY = ExceptionReportService.class.getPackage().getName().concat(".extraAvailableMemory");
 	static final String EXTRA_TOTAL_MEMORY = ExceptionReportService.class.getPackage().getName().concat(".extraTotalMemory");
+	static final String EXTRA_REPORT_ID = ExceptionReportService.class.getPackage().getName().concat(".extraReportId");
+	static final String EXTRA_REPORT_IDS = ExceptionReportService.class.getPackage().getName().concat(".extraReportIds");
+	static final String EXTRA_STACK_TRACE_SIZE = ExceptionReportService.class.getPackage().getName().concat(".extraStackTraceSize");
+	static final String EXTRA_FINGERPRINT = ExceptionReportService.class.getPackage().getName().concat(".extraFingerprint");
+	static final String EXTRA_SAMPLE_RATE = ExceptionReportService.class.getPackage().getName().concat(".extraSampleRate");
+	static final String EXTRA_BREADCRUMBS = ExceptionReportService.class.getPackage().getName().concat(".extraBreadcrumbs");
+	static final String EXTRA_REPORT_TYPE = ExceptionReportService.class.getPackage().getName().concat(".extraReportType");
+	static final String EXTRA_STALL_DURATION = ExceptionReportService.class.getPackage().getName().concat(".extraStallDuration");
+	static final String EXTRA_STALL_SAMPLES = ExceptionReportService.class.getPackage().getName().concat(".extraStallSamples");
+	static final String EXTRA_SUPPRESSED = ExceptionReportService.class.getPackage().getName().concat(".extraSuppressed");
+	static final String EXTRA_SUPPRESSED_SAME = ExceptionReportService.class.getPackage().getName().concat(".extraSuppressedSame");
 	
 	/**
-	 * Used internally to count retries.
+	 * Values of the <tt>reportType</tt> field.
 	 */
-	private static final String EXTRA_CURRENT_RETRY_COUNT = ExceptionReportService.class.getPackage().getName().concat(".extraCurrentRetryCount");
-
+	static final String REPORT_TYPE_EXCEPTION = "exception";
+	static final String REPORT_TYPE_STALL = "stall";
+	
 	/**
-	 * The default maximum backoff exponent.
+	 * Journal field which marks reports that have to be approved by the user
+	 * in the {@link ExceptionReportActivity} before they may be sent.
 	 */
-	static final int DEFAULT_MAXIMUM_BACKOFF_EXPONENT = 12;
-
+	static final String FIELD_AWAITING_APPROVAL = ExceptionReportService.class.getPackage().getName().concat(".awaitingApproval");
+	
 	/**
-	 * The default maximum number of tries to send a report. This value results in a retry
-	 * time of about 8 hours with an unchanged retry count.
+	 * Fields added to reports read from the journal. They describe how often
+	 * the report has been collapsed with identical crashes.
 	 */
-	static final int DEFAULT_MAXIMUM_RETRY_COUNT = DEFAULT_MAXIMUM_BACKOFF_EXPONENT + 5;
+	private static final String FIELD_OCCURRENCES = ExceptionReportService.class.getPackage().getName().concat(".occurrences");
+	private static final String FIELD_FIRST_SEEN = ExceptionReportService.class.getPackage().getName().concat(".firstSeen");
+	private static final String FIELD_LAST_SEEN = ExceptionReportService.class.getPackage().getName().concat(".lastSeen");
 	
 	/**
-	 * The default value whether to report on Android 2.2 and above.
+	 * Used internally to count retries.
 	 */
-	static final boolean DEFAULT_REPORT_ON_FROYO = false;
+	private static final String EXTRA_CURRENT_RETRY_COUNT = ExceptionReportService.class.getPackage().getName().concat(".extraCurrentRetryCount");
 
 	private static final String TAG = ExceptionReportService.class.getSimpleName();
 
+	private static final int UPLOAD_THREAD_KEEP_ALIVE = 30;
+
+	private static final int RESULT_SENT = 0;
+	private static final int RESULT_DISCARDED = 1;
+	private static final int RESULT_RETRY = 2;
+
 	/**
-	 * Maximum number of tries to send a report. Default is {@value #DEFAULT_MAXIMUM_RETRY_COUNT}.
+	 * Status with which the server asks to start a new frame dictionary.
 	 */
-	private static final String META_DATA_MAXIMUM_RETRY_COUNT = ExceptionReportService.class.getPackage().getName().concat(".maximumRetryCount");
-	private static final String META_DATA_MAXIMUM_BACKOFF_EXPONENT = ExceptionReportService.class.getPackage().getName().concat(".maximumBackoffExponent");
-	private static final String META_DATA_REPORT_ON_FROYO = ExceptionReportService.class.getPackage().getName().concat(".reportOnFroyo");
-	private static final String META_DATA_FIELDS_TO_SEND = ExceptionReportService.class.getPackage().getName().concat(".includeFields");
+	private static final int STATUS_FRAME_DICTIONARY_UNKNOWN = 409;
 
-	private static final String DEFAULT_FIELDS_TO_SEND = "all";
+	private ReporterConfig config;
+	private ReportJournal journal;
+	private ReportTransport transport;
+	private UploadScheduler scheduler;
+	/** Uploads reports of the journal in parallel, <tt>null</tt> if they are sent one by one. */
+	private ExecutorService uploadExecutor;
+	/** <tt>null</tt> if stack traces are sent in full. */
+	private FrameDictionary frameDictionary;
+
+	/**
+	 * Number of evictions which are being reported by an upload, so parallel
+	 * uploads don't report them again.
+	 */
+	private int evictedInFlight;
 
 	public ExceptionReportService() {
 		super(ExceptionReportService.class.getSimpleName());
 	}
 
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		config = ReporterConfig.get(this);
+		journal = new ReportJournal(getFilesDir(), config.retention);
+		scheduler = new UploadScheduler(this, config);
+		if (config.frameDictionary) frameDictionary = new FrameDictionary(getFilesDir());
+		// The binary format compresses its body on its own
+		transport = new ReportTransport(config.gzipRequests && !config.binaryFormat, config.uploadConcurrency);
+		if (config.uploadConcurrency > 1) {
+			// Submitting runs the upload on the calling thread when the queue is full
+			uploadExecutor = new ThreadPoolExecutor(config.uploadConcurrency, config.uploadConcurrency, UPLOAD_THREAD_KEEP_ALIVE,
+					TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(config.uploadQueueSize), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+	}
+
+	@Override
+	public void onDestroy() {
+		if (uploadExecutor != null) {
+			// All uploads are done when an intent has been handled, so this doesn't wait long
+			uploadExecutor.shutdown();
+			try {
+				uploadExecutor.awaitTermination(UPLOAD_THREAD_KEEP_ALIVE, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		transport.shutdown();
+		super.onDestroy();
+	}
+
 	@Override
 	protected void onHandleIntent(Intent intent) {
 		try {
 			if (intent.getAction().equals(ACTION_SEND_REPORT)) {
 				sendReport(intent);
+			} else if (intent.getAction().equals(ACTION_SEND_APPROVED_REPORTS)) {
+				sendApprovedReports(intent);
+			} else if (intent.getAction().equals(ACTION_DRAIN_JOURNAL)) {
+				drainJournal();
+			} else if (intent.getAction().equals(ACTION_DISCARD_REPORTS)) {
+				discardReports(intent);
 			}
 		} catch (Exception e) {
 			// Catch all other exceptions as otherwise they would create an endless loop
 			Log.e(TAG, "Error while sending an error report", e);
-		}	
+		}
+		reportHealth();
+	}
+
+	/**
+	 * Writes out the metrics of this process and sends the metrics of all
+	 * processes to the server once the health report interval has passed.
+	 * The values are totals since the installation; a health report which
+	 * couldn't be sent is simply sent with the next intent.
+	 */
+	private void reportHealth() {
+		ReporterMetrics metrics;
+		try {
+			metrics = Metrics.get().flush(getFilesDir());
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write metrics", e);
+			return;
+		}
+		if (!scheduler.isHealthReportDue() || scheduler.getRemainingPause() > 0 || !scheduler.isNetworkAvailable()) return;
+		try {
+			List<NameValuePair> params = buildHealthParams(metrics);
+			int status = transport.post(getTargetUrl().toString(), StreamingReportEntity.form(params)).statusCode;
+			if (status >= 200 && status < 300) {
+				scheduler.setHealthReportSent();
+				Log.v(TAG, "Sent health report: " + metrics);
+			} else {
+				Log.d(TAG, "Server didn't accept the health report (HTTP " + status + ")");
+			}
+		} catch (Exception e) {
+			Log.d(TAG, "Could not send health report", e);
+		}
+	}
+
+	private List<NameValuePair> buildHealthParams(ReporterMetrics metrics) {
+		List<NameValuePair> params = new ArrayList<NameValuePair>();
+		params.add(new BasicNameValuePair("healthReport", String.valueOf(true)));
+		for (ReporterMetrics.Counter counter : ReporterMetrics.Counter.values()) {
+			params.add(new BasicNameValuePair("metric." + counter.name().toLowerCase(), String.valueOf(metrics.get(counter))));
+		}
+		addHistogram(params, "metric.captureTime", metrics.getCaptureTime());
+		addHistogram(params, "metric.uploadLatency", metrics.getUploadLatency());
+		addHistogram(params, "metric.stallDuration", metrics.getStallDuration());
+		addHistogram(params, "metric.watchdogOverhead", metrics.getWatchdogOverhead());
+		Map<ReportField, String> staticFacts = DeviceState.getStatic(this);
+		ReportField[] fields = { ReportField.APP_VERSION_CODE, ReportField.APP_VERSION_NAME, ReportField.APP_PACKAGE_NAME, ReportField.DEV_MODEL, ReportField.DEV_SDK };
+		for (ReportField field : fields) {
+			params.add(new BasicNameValuePair(field.fieldName, staticFacts.get(field)));
+		}
+		return params;
+	}
+
+	/**
+	 * Adds count, sum and the bucket counts, which can be summed up over
+	 * many devices before computing percentiles.
+	 */
+	private static void addHistogram(List<NameValuePair> params, String name, ReporterMetrics.Histogram histogram) {
+		params.add(new BasicNameValuePair(name + ".count", String.valueOf(histogram.getCount())));
+		params.add(new BasicNameValuePair(name + ".sum", String.valueOf(histogram.getSum())));
+		StringBuilder buckets = new StringBuilder();
+		for (int bucket = 0; bucket < ReporterMetrics.Histogram.BUCKETS; bucket++) {
+			if (bucket > 0) buckets.append(',');
+			buckets.append(histogram.getBucketCount(bucket));
+		}
+		params.add(new BasicNameValuePair(name + ".buckets", buckets.toString()));
+	}
+
+	/**
+	 * Converts the extras of a report intent into the fields stored in the {@link ReportJournal}.
+	 */
+	static Map<String, String> toReport(Intent intent, boolean awaitingApproval) {
+		Map<String, String> report = new LinkedHashMap<String, String>();
+		report.put(EXTRA_STACK_TRACE, intent.getStringExtra(EXTRA_STACK_TRACE));
+		report.put(EXTRA_STACK_TRACE_SIZE, String.valueOf(intent.getLongExtra(EXTRA_STACK_TRACE_SIZE, -1l)));
+		report.put(EXTRA_EXCEPTION_CLASS, intent.getStringExtra(EXTRA_EXCEPTION_CLASS));
+		report.put(EXTRA_MESSAGE, intent.getStringExtra(EXTRA_MESSAGE));
+		report.put(EXTRA_EXCEPTION_TIME, intent.getStringExtra(EXTRA_EXCEPTION_TIME));
+		report.put(EXTRA_THREAD_NAME, intent.getStringExtra(EXTRA_THREAD_NAME));
+		report.put(EXTRA_FINGERPRINT, intent.getStringExtra(EXTRA_FINGERPRINT));
+		report.put(EXTRA_EXTRA_MESSAGE, intent.getStringExtra(EXTRA_EXTRA_MESSAGE));
+		report.put(EXTRA_MANUAL_REPORT, String.valueOf(intent.getBooleanExtra(EXTRA_MANUAL_REPORT, false)));
+		report.put(EXTRA_AVAILABLE_MEMORY, String.valueOf(intent.getLongExtra(EXTRA_AVAILABLE_MEMORY, -1l)));
+		report.put(EXTRA_TOTAL_MEMORY, String.valueOf(intent.getLongExtra(EXTRA_TOTAL_MEMORY, -1l)));
+		DeviceState.copyExtras(intent, report);
+		report.put(EXTRA_SAMPLE_RATE, String.valueOf(intent.getFloatExtra(EXTRA_SAMPLE_RATE, 1f)));
+		report.put(EXTRA_BREADCRUMBS, intent.getStringExtra(EXTRA_BREADCRUMBS));
+		if (intent.hasExtra(EXTRA_REPORT_TYPE)) report.put(EXTRA_REPORT_TYPE, intent.getStringExtra(EXTRA_REPORT_TYPE));
+		if (intent.hasExtra(EXTRA_STALL_DURATION)) report.put(EXTRA_STALL_DURATION, String.valueOf(intent.getLongExtra(EXTRA_STALL_DURATION, -1l)));
+		if (intent.hasExtra(EXTRA_STALL_SAMPLES)) report.put(EXTRA_STALL_SAMPLES, intent.getStringExtra(EXTRA_STALL_SAMPLES));
+		report.put(EXTRA_SUPPRESSED, String.valueOf(intent.getIntExtra(EXTRA_SUPPRESSED, 0)));
+		report.put(EXTRA_SUPPRESSED_SAME, String.valueOf(intent.getIntExtra(EXTRA_SUPPRESSED_SAME, 0)));
+		if (awaitingApproval) report.put(FIELD_AWAITING_APPROVAL, String.valueOf(true));
+		return report;
+	}
+
+	/**
+	 * Reads the fields of a journal record back and adds its occurrence
+	 * statistics.
+	 *
+	 * @return The fields or <tt>null</tt> if the report isn't pending anymore
+	 *         or could not be read
+	 */
+	private Map<String, String> toReport(ReportJournal.Record record) {
+		Map<String, String> report;
+		try {
+			report = journal.readFields(record);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read report " + record.id + " from journal", e);
+			return null;
+		}
+		if (report == null) return null;
+		report.put(FIELD_OCCURRENCES, String.valueOf(record.occurrences));
+		report.put(FIELD_FIRST_SEEN, String.valueOf(record.firstSeen));
+		report.put(FIELD_LAST_SEEN, String.valueOf(record.lastSeen));
+		return report;
 	}
 
 	private void sendReport(Intent intent) throws UnsupportedEncodingException, NameNotFoundException {
 		Log.v(TAG, "Got request to report error: " + intent.toString());
-		Uri server = getTargetUrl();
-
-		boolean isManualReport = intent.getBooleanExtra(EXTRA_MANUAL_REPORT, false);
-		boolean isReportOnFroyo = isReportOnFroyo();
-		boolean isFroyoOrAbove = isFroyoOrAbove();
-		if (isFroyoOrAbove && !isManualReport && !isReportOnFroyo) {
-			// We don't send automatic reports on froyo or above
-			Log.d(TAG, "Don't send automatic report on froyo");
+		
+		Map<String, String> report = null;
+		long reportId = intent.getLongExtra(EXTRA_REPORT_ID, -1l);
+		if (reportId != -1l) {
+			try {
+				List<ReportJournal.Record> claimed = journal.claim(Collections.singleton(reportId));
+				ReportJournal.Record record = claimed.isEmpty() ? null : claimed.get(0);
+				report = record != null ? toReport(record) : null;
+				if (report == null) {
+					Log.d(TAG, "Report has already been sent or discarded: " + reportId);
+					return;
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Could not read report from journal. Using intent extras instead.", e);
+			}
+		}
+		if (report == null && !intent.hasExtra(EXTRA_STACK_TRACE)) {
+			// Only the id has been passed, so the report has to be read again later
+			Log.w(TAG, "Report " + reportId + " is neither readable from the journal nor part of the intent");
+		} else if (report == null) {
+			report = toReport(intent, false);
+		} else if (config.batchSize > 1 && !Boolean.parseBoolean(report.get(FIELD_AWAITING_APPROVAL))) {
+			// The report is in the journal, so send it together with all other pending reports
+			drainJournal();
 			return;
 		}
+		// Values entered by the user in the ExceptionReportActivity
+		if (report != null && intent.hasExtra(EXTRA_EXTRA_MESSAGE)) {
+			report.put(EXTRA_EXTRA_MESSAGE, intent.getStringExtra(EXTRA_EXTRA_MESSAGE));
+		}
+		if (report != null && intent.getBooleanExtra(EXTRA_MANUAL_REPORT, false)) {
+			report.put(EXTRA_MANUAL_REPORT, String.valueOf(true));
+		}
 		
-		Set<String> fieldsToSend = getFieldsToSend();
+		long pause = scheduler.getRemainingPause();
+		if (pause > 0) {
+			// The server asked to pause all uploads
+			scheduler.schedule(PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT), pause);
+			return;
+		}
+		// Reports in the journal can wait for the network. Values entered by
+		// the user only exist in the intent, so those are retried with it.
+		boolean deferrable = reportId != -1l && report != null
+				&& !Boolean.parseBoolean(report.get(FIELD_AWAITING_APPROVAL)) && !intent.hasExtra(EXTRA_EXTRA_MESSAGE);
+		int result;
+		if (report == null || (deferrable && !scheduler.isNetworkAvailable())) {
+			result = RESULT_RETRY;
+		} else {
+			int generation = getFrameDictionaryGeneration();
+			result = sendReport(report);
+			if (result == RESULT_RETRY && getFrameDictionaryGeneration() != generation) {
+				// The server lost the frame dictionary, so send all frames in full right away
+				result = sendReport(report);
+			}
+		}
+		if (result == RESULT_RETRY) {
+			if (deferrable && !scheduler.isNetworkAvailable() && scheduler.waitForConnectivity()) {
+				// Sent together with the journal once the network is back
+				return;
+			}
+			int maximumRetryCount = config.maximumRetryCount;
+			int maximumExponent = config.maximumBackoffExponent;
+			// Retry at a later point in time
+			int exponent = intent.getIntExtra(EXTRA_CURRENT_RETRY_COUNT, 0);
+			intent.putExtra(EXTRA_CURRENT_RETRY_COUNT, exponent + 1);
+			PendingIntent operation = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+			if (exponent >= maximumRetryCount) {
+				// Discard error
+				Log.w(TAG, "Error report reached the maximum retry count and will be discarded.\nStacktrace:\n"+(report != null ? report.get(EXTRA_STACK_TRACE) : null));
+				Metrics.get().increment(ReporterMetrics.Counter.DISCARDED);
+				acknowledge(reportId);
+				return;
+			}
+			if (exponent > maximumExponent) {
+				exponent = maximumExponent;
+			}
+			scheduler.scheduleRetry(operation, exponent);
+		} else {
+			acknowledge(reportId);
+			if (result == RESULT_SENT) {
+				// The network works right now, so take the chance to send
+				// reports which are left over from earlier runs
+				drainJournal();
+			}
+		}
+	}
+
+	/**
+	 * Sends the reports the user approved together in the
+	 * {@link ExceptionReportActivity}. With the binary format or batches,
+	 * they go out in as few requests as the byte limit allows, otherwise
+	 * one after another over the same connection. Reports which couldn't be
+	 * sent are retried with the intent, like a single approved report.
+	 */
+	private void sendApprovedReports(Intent intent) throws UnsupportedEncodingException, NameNotFoundException {
+		long[] ids = intent.getLongArrayExtra(EXTRA_REPORT_IDS);
+		if (ids == null) return;
+		Set<Long> approved = new HashSet<Long>();
+		for (long id : ids) {
+			approved.add(id);
+		}
+		List<ReportJournal.Record> records = new ArrayList<ReportJournal.Record>();
+		try {
+			for (ReportJournal.Record record : journal.readPending()) {
+				if (approved.contains(record.id)) records.add(record);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read report journal", e);
+		}
+		if (records.isEmpty()) return;
+		Map<String, String> userValues = new HashMap<String, String>();
+		userValues.put(EXTRA_MANUAL_REPORT, String.valueOf(true));
+		if (intent.hasExtra(EXTRA_EXTRA_MESSAGE)) userValues.put(EXTRA_EXTRA_MESSAGE, intent.getStringExtra(EXTRA_EXTRA_MESSAGE));
+
+		long pause = scheduler.getRemainingPause();
+		if (pause > 0) {
+			// The server asked to pause all uploads
+			scheduler.schedule(PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT), pause);
+			return;
+		}
+		records = claim(records);
+		boolean retry = false;
+		if (config.binaryFormat || config.batchSize > 1) {
+			retry = !sendBatch(records, config.batchMaximumBytes, userValues);
+		} else {
+			List<Long> sent = new ArrayList<Long>(records.size());
+			for (ReportJournal.Record record : records) {
+				Map<String, String> report = toReport(record);
+				if (report == null) continue;
+				report.putAll(userValues);
+				if (sendReport(report) == RESULT_RETRY) {
+					retry = true;
+					break;
+				}
+				sent.add(record.id);
+			}
+			acknowledge(sent);
+		}
+		if (!retry) return;
+		int exponent = intent.getIntExtra(EXTRA_CURRENT_RETRY_COUNT, 0);
+		if (exponent >= config.maximumRetryCount) {
+			Log.w(TAG, "Approved error reports reached the maximum retry count and will be discarded");
+			List<Long> discarded = new ArrayList<Long>(records.size());
+			for (ReportJournal.Record record : records) {
+				discarded.add(record.id);
+			}
+			acknowledge(discarded);
+			Metrics.get().add(ReporterMetrics.Counter.DISCARDED, records.size());
+			return;
+		}
+		intent.putExtra(EXTRA_CURRENT_RETRY_COUNT, exponent + 1);
+		PendingIntent operation = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+		scheduler.scheduleRetry(operation, Math.min(exponent, config.maximumBackoffExponent));
+	}
+
+	/**
+	 * @return The reports in the journal which wait for the user's approval
+	 */
+	static List<ReportJournal.Record> readAwaitingApproval(Context context) throws IOException {
+		List<ReportJournal.Record> result = new ArrayList<ReportJournal.Record>();
+		for (ReportJournal.Record record : new ReportJournal(context.getFilesDir()).readPending()) {
+			if (Boolean.parseBoolean(record.get(FIELD_AWAITING_APPROVAL))) result.add(record);
+		}
+		return result;
+	}
+
+	/**
+	 * Sends all reports from the journal which don't need user approval. Stops
+	 * at the first report (or batch) which has to be retried and schedules
+	 * another attempt for the whole journal. Without a usable network, the
+	 * {@link UploadScheduler} waits for one instead.
+	 */
+	private void drainJournal() throws UnsupportedEncodingException, NameNotFoundException {
+		drainJournal(false);
+	}
+
+	/**
+	 * @param resynced Whether the journal is drained again because the server
+	 *        lost the frame dictionary
+	 */
+	private void drainJournal(boolean resynced) throws UnsupportedEncodingException, NameNotFoundException {
+		recoverCrashCaptures();
+		List<ReportJournal.Record> pending;
+		try {
+			pending = journal.readPending();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read report journal", e);
+			return;
+		}
+		List<ReportJournal.Record> sendable = new ArrayList<ReportJournal.Record>(pending.size());
+		for (ReportJournal.Record record : pending) {
+			if (!Boolean.parseBoolean(record.get(FIELD_AWAITING_APPROVAL))) sendable.add(record);
+		}
+		if (sendable.isEmpty()) {
+			scheduler.resetJournalRetryCount();
+			return;
+		}
+		long pause = scheduler.getRemainingPause();
+		if (pause > 0) {
+			// The server asked to pause all uploads
+			Intent intent = new Intent(ACTION_DRAIN_JOURNAL);
+			intent.setClass(this, ExceptionReportService.class);
+			scheduler.schedule(PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT), pause);
+			return;
+		}
+		if (!scheduler.canUploadJournal() && scheduler.waitForConnectivity()) {
+			return;
+		}
+		sendable = claim(sendable);
+		int batchSize = config.batchSize;
+		int generation = getFrameDictionaryGeneration();
+		boolean retry = false;
+		if (batchSize > 1) {
+			int batchMaximumBytes = config.batchMaximumBytes;
+			for (int offset = 0; offset < sendable.size() && !retry; offset += batchSize) {
+				int end = Math.min(offset + batchSize, sendable.size());
+				retry = !sendBatch(sendable.subList(offset, end), batchMaximumBytes);
+			}
+		} else if (uploadExecutor != null) {
+			retry = !uploadConcurrently(sendable);
+		} else {
+			List<Long> sent = new ArrayList<Long>(sendable.size());
+			for (ReportJournal.Record record : sendable) {
+				Map<String, String> report = toReport(record);
+				if (report == null) continue;
+				if (sendReport(report) == RESULT_RETRY) {
+					retry = true;
+					break;
+				}
+				sent.add(record.id);
+			}
+			acknowledge(sent);
+		}
+		if (retry && !resynced && getFrameDictionaryGeneration() != generation) {
+			// Send everything which is left with all frames in full right away
+			drainJournal(true);
+			return;
+		}
+		if (retry) {
+			if (!scheduler.isNetworkAvailable() && scheduler.waitForConnectivity()) return;
+			Intent intent = new Intent(ACTION_DRAIN_JOURNAL);
+			intent.setClass(this, ExceptionReportService.class);
+			PendingIntent operation = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+			int exponent = scheduler.incrementJournalRetryCount();
+			scheduler.scheduleRetry(operation, Math.min(exponent, config.maximumBackoffExponent));
+		} else {
+			scheduler.resetJournalRetryCount();
+		}
+	}
+
+	/**
+	 * Uploads the reports on the worker pool. Reports with the same
+	 * fingerprint are sent one after another in their original order, reports
+	 * of different crashes in parallel. Like the sequential upload, all workers
+	 * stop once a report has to be retried. Returns when all uploads are done.
+	 * 
+	 * @return <tt>false</tt> if reports have to be retried later
+	 */
+	private boolean uploadConcurrently(List<ReportJournal.Record> records) {
+		Map<String, List<ReportJournal.Record>> lanes = new LinkedHashMap<String, List<ReportJournal.Record>>();
+		for (ReportJournal.Record record : records) {
+			String key = record.fingerprint != null ? record.fingerprint : String.valueOf(record.id);
+			List<ReportJournal.Record> lane = lanes.get(key);
+			if (lane == null) {
+				lane = new ArrayList<ReportJournal.Record>();
+				lanes.put(key, lane);
+			}
+			lane.add(record);
+		}
+		final AtomicBoolean retry = new AtomicBoolean(false);
+		// Acknowledged together once all workers are done
+		final List<Long> sent = Collections.synchronizedList(new ArrayList<Long>(records.size()));
+		List<Future<Void>> uploads = new ArrayList<Future<Void>>(lanes.size());
+		for (final List<ReportJournal.Record> lane : lanes.values()) {
+			// Blocks while the queue of the pool is full
+			uploads.add(uploadExecutor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					for (ReportJournal.Record record : lane) {
+						if (retry.get()) return null;
+						Map<String, String> report = toReport(record);
+						if (report == null) continue;
+						if (sendReport(report) == RESULT_RETRY) {
+							retry.set(true);
+							return null;
+						}
+						sent.add(record.id);
+					}
+					return null;
+				}
+
+			}));
+		}
+		try {
+			for (Future<Void> upload : uploads) {
+				try {
+					upload.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				} catch (ExecutionException e) {
+					Log.e(TAG, "Error while sending an error report", e.getCause());
+					retry.set(true);
+				}
+			}
+		} finally {
+			synchronized (sent) {
+				acknowledge(new ArrayList<Long>(sent));
+			}
+		}
+		return !retry.get();
+	}
+
+	/**
+	 * Moves crashes which have only been written by the {@link CrashCapture}
+	 * (because the regular reporting failed in the dying process) into the
+	 * journal. The stack trace is formatted here, where memory is available.
+	 */
+	private void recoverCrashCaptures() {
+		boolean awaitingApproval = ExceptionReporter.isApprovalRequired(this);
+		Sampler sampler = ExceptionReporter.getSampler(this);
+		for (File file : CrashCapture.listPending(getFilesDir())) {
+			try {
+				CrashCapture.Captured captured = CrashCapture.read(file);
+				String className = captured != null ? CrashCapture.getClassName(captured.exception) : null;
+				float sampleRate = captured != null ? sampler.getRate(className, false) : 1f;
+				if (captured != null && !sampler.isSampled(className, sampleRate)) {
+					Log.v(TAG, "Not sampled: " + className);
+				} else if (captured != null) {
+					Throwable ex = captured.exception;
+					StackTraceCompactor.Result stackTrace = config.stackTraceCompactor.compact(ex);
+					String fingerprint = Fingerprint.of(ex);
+					Map<String, String> report = new LinkedHashMap<String, String>();
+					report.put(EXTRA_STACK_TRACE, stackTrace.stackTrace);
+					report.put(EXTRA_STACK_TRACE_SIZE, String.valueOf(stackTrace.originalBytes));
+					report.put(EXTRA_EXCEPTION_CLASS, className);
+					report.put(EXTRA_MESSAGE, ex.getMessage());
+					report.put(EXTRA_EXCEPTION_TIME, new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ").format(new Date(captured.time)));
+					report.put(EXTRA_THREAD_NAME, captured.threadName);
+					report.put(EXTRA_FINGERPRINT, fingerprint);
+					report.put(EXTRA_MANUAL_REPORT, String.valueOf(false));
+					report.put(EXTRA_SAMPLE_RATE, String.valueOf(sampleRate));
+					if (awaitingApproval) report.put(FIELD_AWAITING_APPROVAL, String.valueOf(true));
+					long reportId = journal.append(ReportJournal.newId(), fingerprint, captured.time, report);
+					Metrics.get().increment(ReporterMetrics.Counter.QUEUED);
+					if (awaitingApproval) {
+						Intent intent = new Intent(ACTION_SEND_REPORT);
+						intent.setData((Uri.parse("custom://" + SystemClock.elapsedRealtime())));
+						intent.putExtra(EXTRA_REPORT_ID, reportId);
+						ExceptionReporter.showNotification(this, intent);
+					}
+				} else {
+					Log.w(TAG, "Discarding incomplete crash capture " + file.getName());
+				}
+				file.delete();
+			} catch (IOException e) {
+				Log.e(TAG, "Could not recover crash capture " + file.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Sends the given reports as JSON arrays in as few requests as the byte
+	 * limit allows. Each report carries its <tt>reportId</tt>. The server may
+	 * answer with a JSON array of the ids it accepted; all other reports of
+	 * the batch stay in the journal. Any other response accepts the whole
+	 * batch.
+	 * 
+	 * @return <tt>false</tt> if the batch has to be retried later
+	 */
+	private boolean sendBatch(List<ReportJournal.Record> records, int maximumBytes) throws UnsupportedEncodingException, NameNotFoundException {
+		return sendBatch(records, maximumBytes, null);
+	}
+
+	/**
+	 * @param userValues Values entered by the user which are added to every
+	 *        report or <tt>null</tt>
+	 */
+	private boolean sendBatch(List<ReportJournal.Record> records, int maximumBytes, Map<String, String> userValues) throws UnsupportedEncodingException, NameNotFoundException {
+		List<List<NameValuePair>> batch = new ArrayList<List<NameValuePair>>();
+		List<Long> batchIds = new ArrayList<Long>();
+		long batchBytes = 0;
+		// Reports which can't be sent are acknowledged together
+		List<Long> skipped = new ArrayList<Long>();
+		for (ReportJournal.Record record : records) {
+			Map<String, String> report = toReport(record);
+			if (report == null) continue;
+			if (userValues != null) report.putAll(userValues);
+			List<NameValuePair> params = buildParams(report);
+			if (params == null) {
+				skipped.add(record.id);
+				continue;
+			}
+			params.add(0, new BasicNameValuePair("reportId", String.valueOf(record.id)));
+			// Encoded size before compression, counted without buffering the encoded report
+			List<List<NameValuePair>> single = Collections.singletonList(params);
+			long bytes = (config.binaryFormat ? StreamingReportEntity.binary(single, false) : StreamingReportEntity.json(single)).getContentLength();
+			if (!batchIds.isEmpty() && batchBytes + bytes > maximumBytes) {
+				if (!postBatch(batch, batchIds)) {
+					acknowledge(skipped);
+					return false;
+				}
+				batch = new ArrayList<List<NameValuePair>>();
+				batchIds = new ArrayList<Long>();
+				batchBytes = 0;
+			}
+			batch.add(params);
+			batchIds.add(record.id);
+			batchBytes += bytes;
+		}
+		acknowledge(skipped);
+		return batchIds.isEmpty() || postBatch(batch, batchIds);
+	}
+
+	private boolean postBatch(List<List<NameValuePair>> batch, List<Long> batchIds) throws UnsupportedEncodingException, NameNotFoundException {
+		int evicted = claimEvicted();
+		if (evicted > 0) addNameValuePair(batch.get(0), ReportField.EX_EVICTED, String.valueOf(evicted));
+		HttpEntity entity;
+		if (config.binaryFormat) {
+			entity = createBinaryEntity(batch);
+		} else {
+			entity = StreamingReportEntity.json(batch);
+		}
+		Log.d(TAG, "Created batch post request with " + batchIds.size() + " reports");
 		
-		String stacktrace = intent.getStringExtra(EXTRA_STACK_TRACE);
-		String exception = intent.getStringExtra(EXTRA_EXCEPTION_CLASS);
-		String message = intent.getStringExtra(EXTRA_MESSAGE);
-		long availableMemory = intent.getLongExtra(EXTRA_AVAILABLE_MEMORY, -1l);
-		long totalMemory = intent.getLongExtra(EXTRA_TOTAL_MEMORY, -1l);
-		String dateTime = intent.getStringExtra(EXTRA_EXCEPTION_TIME);
-		String threadName = intent.getStringExtra(EXTRA_THREAD_NAME);
-		String extraMessage = intent.getStringExtra(EXTRA_EXTRA_MESSAGE);
-		List<NameValuePair> params = new ArrayList<NameValuePair>();
-		addNameValuePair(params, fieldsToSend, "exStackTrace", stacktrace);
-		addNameValuePair(params, fieldsToSend, "exClass", exception);
-		addNameValuePair(params, fieldsToSend, "exDateTime", dateTime);
-		addNameValuePair(params, fieldsToSend, "exMessage", message);
-		addNameValuePair(params, fieldsToSend, "exThreadName", threadName);
-		if (extraMessage != null) addNameValuePair(params, fieldsToSend, "extraMessage", extraMessage);
-		if (availableMemory >= 0) addNameValuePair(params, fieldsToSend, "devAvailableMemory", availableMemory+"");
-		if (totalMemory >= 0) addNameValuePair(params, fieldsToSend, "devTotalMemory", totalMemory+"");
+		String response = null;
+		boolean sent = false;
+		try {
+			ReportTransport.Response httpResponse = transport.post(getTargetUrl().toString(), entity);
+			int result = getResult(httpResponse);
+			if (result == RESULT_RETRY) {
+				Metrics.get().add(ReporterMetrics.Counter.RETRIED, batchIds.size());
+				return false;
+			}
+			// A rejected batch is dropped as a whole
+			if (result == RESULT_SENT) {
+				response = httpResponse.body;
+				sent = true;
+			} else {
+				Metrics.get().add(ReporterMetrics.Counter.REJECTED, batchIds.size());
+			}
+		} catch (ClientProtocolException e) {
+			// Ignore this kind of error
+			Log.e(TAG, "Error while sending a batch of error reports", e);
+		} catch (SSLException e) {
+			Log.e(TAG, "Error while sending a batch of error reports", e);
+		} catch (IOException e) {
+			if (e instanceof SocketException && e.getMessage().contains("Permission denied")) {
+				Log.e(TAG, "You don't have internet permission", e);
+			} else {
+				Metrics.get().add(ReporterMetrics.Counter.RETRIED, batchIds.size());
+				return false;
+			}
+		} finally {
+			releaseEvicted(evicted, sent);
+		}
 		
-		PackageManager pm = getPackageManager();
+		Set<Long> accepted = parseAcceptedIds(response);
+		// Any other response accepts the whole batch
+		List<Long> acknowledged = new ArrayList<Long>(batchIds.size());
+		for (int i = 0; i < batchIds.size(); i++) {
+			Long id = batchIds.get(i);
+			if (accepted == null || accepted.contains(id)) {
+				if (sent) acknowledgeFrames(batch.get(i));
+				acknowledged.add(id);
+			}
+		}
+		acknowledge(acknowledged);
+		if (sent) {
+			Metrics.get().add(ReporterMetrics.Counter.SENT, acknowledged.size());
+			Metrics.get().add(ReporterMetrics.Counter.RETRIED, batchIds.size() - acknowledged.size());
+		}
+		Log.v(TAG, "Reported a batch of " + batchIds.size() + " errors");
+		return accepted == null || accepted.containsAll(batchIds);
+	}
+
+	/**
+	 * @return The report ids acknowledged by the server or <tt>null</tt> if
+	 *         the response doesn't contain a list of ids
+	 */
+	private static Set<Long> parseAcceptedIds(String response) {
+		if (response == null || !response.trim().startsWith("[")) return null;
+		try {
+			JSONArray ids = new JSONArray(response);
+			Set<Long> result = new HashSet<Long>();
+			for (int i = 0; i < ids.length(); i++) {
+				result.add(Long.parseLong(ids.getString(i)));
+			}
+			return result;
+		} catch (JSONException e) {
+			return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the number of reports dropped by the retention limits, which is
+	 * sent along with the next report. Returns 0 while another upload is
+	 * reporting them.
+	 */
+	private synchronized int claimEvicted() {
+		if (evictedInFlight > 0) return 0;
 		try {
-			PackageInfo packageInfo = pm.getPackageInfo(getPackageName(), 0);
-			addNameValuePair(params, fieldsToSend, "appVersionCode", packageInfo.versionCode+"");
-			addNameValuePair(params, fieldsToSend, "appVersionName", packageInfo.versionName);
-			addNameValuePair(params, fieldsToSend, "appPackageName", packageInfo.packageName);
-		} catch (NameNotFoundException e) {}
-		addNameValuePair(params, fieldsToSend, "devModel", android.os.Build.MODEL);
-		addNameValuePair(params, fieldsToSend, "devSdk", android.os.Build.VERSION.SDK);
-		addNameValuePair(params, fieldsToSend, "devReleaseVersion", android.os.Build.VERSION.RELEASE);
-
-		HttpClient httpClient = new DefaultHttpClient();
-		HttpPost post = new HttpPost(server.toString());
-		post.setEntity(new UrlEncodedFormEntity(params, HTTP.UTF_8));
+			evictedInFlight = journal.readEvicted();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not read evicted reports", e);
+		}
+		return evictedInFlight;
+	}
+
+	/**
+	 * @param reported Whether the server has accepted the report carrying the evictions
+	 */
+	private synchronized void releaseEvicted(int evicted, boolean reported) {
+		if (evicted == 0) return;
+		evictedInFlight = 0;
+		if (!reported) return;
+		try {
+			journal.acknowledgeEvicted(evicted);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not acknowledge evicted reports", e);
+		}
+	}
+
+	/**
+	 * Claims the reports for upload, so later occurrences aren't collapsed
+	 * into them anymore.
+	 *
+	 * @return The current state of the reports which are still pending
+	 */
+	private List<ReportJournal.Record> claim(List<ReportJournal.Record> records) {
+		List<Long> ids = new ArrayList<Long>(records.size());
+		for (ReportJournal.Record record : records) {
+			ids.add(record.id);
+		}
+		try {
+			return journal.claim(ids);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not claim reports for upload", e);
+			return records;
+		}
+	}
+
+	/**
+	 * Removes the reports the user declined in the
+	 * {@link ExceptionReportActivity} from the journal, so they won't be
+	 * sent later on.
+	 */
+	private void discardReports(Intent intent) {
+		long[] ids = intent.getLongArrayExtra(EXTRA_REPORT_IDS);
+		if (ids == null) return;
+		List<Long> discarded = new ArrayList<Long>(ids.length);
+		for (long id : ids) {
+			discarded.add(id);
+		}
+		acknowledge(discarded);
+	}
+
+	private void acknowledge(long reportId) {
+		if (reportId == -1l) return;
+		try {
+			journal.acknowledge(reportId);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not acknowledge report " + reportId, e);
+		}
+	}
+
+	private void acknowledge(List<Long> reportIds) {
+		if (reportIds.isEmpty()) return;
+		try {
+			journal.acknowledge(reportIds);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not acknowledge " + reportIds.size() + " reports", e);
+		}
+	}
+
+	/**
+	 * Sends a single report.
+	 * 
+	 * @return One of {@link #RESULT_SENT}, {@link #RESULT_DISCARDED} or {@link #RESULT_RETRY}
+	 */
+	private int sendReport(Map<String, String> report) throws UnsupportedEncodingException, NameNotFoundException {
+		List<NameValuePair> params = buildParams(report);
+		if (params == null) return RESULT_DISCARDED;
+
+		int evicted = claimEvicted();
+		if (evicted > 0) addNameValuePair(params, ReportField.EX_EVICTED, String.valueOf(evicted));
+
+		HttpEntity entity;
+		if (config.binaryFormat) {
+			entity = createBinaryEntity(Collections.singletonList(params));
+		} else {
+			entity = StreamingReportEntity.form(params);
+		}
 		Log.d(TAG, "Created post request");
 
+		boolean sent = false;
 		try {
-			httpClient.execute(post);
-			Log.v(TAG, "Reported error: " + intent.toString());
+			int result = getResult(transport.post(getTargetUrl().toString(), entity));
+			if (result == RESULT_SENT) {
+				Log.v(TAG, "Reported error: " + report.get(EXTRA_EXCEPTION_CLASS));
+				sent = true;
+				acknowledgeFrames(params);
+				Metrics.get().increment(ReporterMetrics.Counter.SENT);
+			} else {
+				Metrics.get().increment(result == RESULT_RETRY ? ReporterMetrics.Counter.RETRIED : ReporterMetrics.Counter.REJECTED);
+			}
+			return result;
 		} catch (ClientProtocolException e) {
 			// Ignore this kind of error
 			Log.e(TAG, "Error while sending an error report", e);
@@ -175,32 +928,163 @@ public class ExceptionReportService extends ReportingIntentService {
 			if (e instanceof SocketException && e.getMessage().contains("Permission denied")) {
 				Log.e(TAG, "You don't have internet permission", e);
 			} else {
-				int maximumRetryCount = getMaximumRetryCount();
-				int maximumExponent = getMaximumBackoffExponent();
-				// Retry at a later point in time
-				AlarmManager alarmMgr = (AlarmManager) getSystemService(ALARM_SERVICE);
-				int exponent = intent.getIntExtra(EXTRA_CURRENT_RETRY_COUNT, 0);
-				intent.putExtra(EXTRA_CURRENT_RETRY_COUNT, exponent + 1);
-				PendingIntent operation = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
-				if (exponent >= maximumRetryCount) {
-					// Discard error
-					Log.w(TAG, "Error report reached the maximum retry count and will be discarded.\nStacktrace:\n"+stacktrace);
-					return;
-				}
-				if (exponent > maximumExponent) {
-					exponent = maximumExponent;
-				}
-				long backoff = (1 << exponent) * 1000; // backoff in ms
-				alarmMgr.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + backoff, operation);
+				Metrics.get().increment(ReporterMetrics.Counter.RETRIED);
+				return RESULT_RETRY;
 			}
+		} finally {
+			releaseEvicted(evicted, sent);
+		}
+		return RESULT_DISCARDED;
+	}
+
+	/**
+	 * Marks the frames defined by an accepted report as known to the server.
+	 */
+	private void acknowledgeFrames(List<NameValuePair> params) {
+		if (frameDictionary == null) return;
+		String dictionaryId = null;
+		String frames = null;
+		for (NameValuePair param : params) {
+			if (param.getName().equals(ReportField.FRAME_DICTIONARY.fieldName)) dictionaryId = param.getValue();
+			if (param.getName().equals(ReportField.EX_STACK_TRACE_FRAMES.fieldName)) frames = param.getValue();
+		}
+		if (dictionaryId != null && frames != null) frameDictionary.acknowledge(dictionaryId, frames);
+	}
+
+	private int getFrameDictionaryGeneration() {
+		return frameDictionary != null ? frameDictionary.getGeneration() : 0;
+	}
+
+	/**
+	 * Interprets the status of a response: 2xx accepts the report, 5xx and
+	 * 429 (Too Many Requests) ask for a retry and any other status rejects
+	 * it. A <tt>Retry-After</tt> pauses all uploads. With a frame dictionary,
+	 * 409 (Conflict) means the server doesn't know a referenced frame: a new
+	 * dictionary is started and the report is retried.
+	 * 
+	 * @return One of {@link #RESULT_SENT}, {@link #RESULT_DISCARDED} or {@link #RESULT_RETRY}
+	 */
+	private int getResult(ReportTransport.Response response) {
+		int status = response.statusCode;
+		if (status >= 200 && status < 300) return RESULT_SENT;
+		if (status == 429 || status >= 500) {
+			long retryAfter = response.getRetryAfter();
+			Log.w(TAG, "Server is unavailable (HTTP " + status + "), retrying" + (retryAfter >= 0 ? " after " + retryAfter + "ms" : ""));
+			if (retryAfter > 0) scheduler.pause(retryAfter);
+			return RESULT_RETRY;
+		}
+		if (status == STATUS_FRAME_DICTIONARY_UNKNOWN && frameDictionary != null) {
+			Log.w(TAG, "Server doesn't know the frame dictionary (HTTP " + status + "), starting a new one");
+			frameDictionary.reset();
+			return RESULT_RETRY;
 		}
+		Log.e(TAG, "Server rejected the error report (HTTP " + status + "), discarding it");
+		return RESULT_DISCARDED;
 	}
 
-	private void addNameValuePair(List<NameValuePair> list, Set<String> fieldsToSend, String name, String value) {
-		if (fieldsToSend.contains("all") || fieldsToSend.contains(name)) {
-			list.add(new BasicNameValuePair(name, value));
+	/**
+	 * Encodes reports in the {@link BinaryReportFormat}. If compression is
+	 * enabled, the format deflates the body itself instead of the transport.
+	 */
+	private HttpEntity createBinaryEntity(List<List<NameValuePair>> reports) {
+		return StreamingReportEntity.binary(reports, config.gzipRequests);
+	}
+
+	/**
+	 * Builds the fields which are sent to the server for a report.
+	 * 
+	 * @return The fields or <tt>null</tt> if the report must not be sent
+	 */
+	private List<NameValuePair> buildParams(Map<String, String> report) throws NameNotFoundException {
+		boolean isManualReport = Boolean.parseBoolean(report.get(EXTRA_MANUAL_REPORT));
+		boolean isReportOnFroyo = config.reportOnFroyo;
+		boolean isFroyoOrAbove = isFroyoOrAbove();
+		// Stalls are only watched for if enabled explicitly
+		boolean isStall = REPORT_TYPE_STALL.equals(report.get(EXTRA_REPORT_TYPE));
+		if (isFroyoOrAbove && !isManualReport && !isReportOnFroyo && !isStall) {
+			// We don't send automatic reports on froyo or above
+			Log.d(TAG, "Don't send automatic report on froyo");
+			return null;
 		}
 		
+		String stacktrace = report.get(EXTRA_STACK_TRACE);
+		long stackTraceSize = parseLong(report.get(EXTRA_STACK_TRACE_SIZE), -1l);
+		String exception = report.get(EXTRA_EXCEPTION_CLASS);
+		String message = report.get(EXTRA_MESSAGE);
+		long availableMemory = parseLong(report.get(EXTRA_AVAILABLE_MEMORY), -1l);
+		long totalMemory = parseLong(report.get(EXTRA_TOTAL_MEMORY), -1l);
+		String dateTime = report.get(EXTRA_EXCEPTION_TIME);
+		String threadName = report.get(EXTRA_THREAD_NAME);
+		String extraMessage = report.get(EXTRA_EXTRA_MESSAGE);
+		String fingerprint = report.get(EXTRA_FINGERPRINT);
+		long occurrences = parseLong(report.get(FIELD_OCCURRENCES), -1l);
+		long firstSeen = parseLong(report.get(FIELD_FIRST_SEEN), -1l);
+		long lastSeen = parseLong(report.get(FIELD_LAST_SEEN), -1l);
+		String sampleRate = report.get(EXTRA_SAMPLE_RATE);
+		String breadcrumbs = report.get(EXTRA_BREADCRUMBS);
+		String reportType = report.get(EXTRA_REPORT_TYPE);
+		long stallDuration = parseLong(report.get(EXTRA_STALL_DURATION), -1l);
+		String stallSamples = report.get(EXTRA_STALL_SAMPLES);
+		long suppressed = parseLong(report.get(EXTRA_SUPPRESSED), 0);
+		long suppressedSame = parseLong(report.get(EXTRA_SUPPRESSED_SAME), 0);
+		List<NameValuePair> params = new ArrayList<NameValuePair>();
+		if (frameDictionary != null && stacktrace != null && config.includes(ReportField.EX_STACK_TRACE)) {
+			FrameDictionary.Encoded encoded = frameDictionary.encode(stacktrace);
+			params.add(new BasicNameValuePair(ReportField.EX_STACK_TRACE_FRAMES.fieldName, encoded.frames));
+			params.add(new BasicNameValuePair(ReportField.FRAME_DICTIONARY.fieldName, encoded.dictionaryId));
+		} else {
+			addNameValuePair(params, ReportField.EX_STACK_TRACE, stacktrace);
+		}
+		if (stackTraceSize >= 0) addNameValuePair(params, ReportField.EX_STACK_TRACE_SIZE, stackTraceSize+"");
+		addNameValuePair(params, ReportField.EX_CLASS, exception);
+		addNameValuePair(params, ReportField.EX_DATE_TIME, dateTime);
+		addNameValuePair(params, ReportField.EX_MESSAGE, message);
+		addNameValuePair(params, ReportField.EX_THREAD_NAME, threadName);
+		if (extraMessage != null) addNameValuePair(params, ReportField.EXTRA_MESSAGE, extraMessage);
+		if (fingerprint != null) addNameValuePair(params, ReportField.EX_FINGERPRINT, fingerprint);
+		if (occurrences >= 0) {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ");
+			addNameValuePair(params, ReportField.EX_OCCURRENCES, occurrences+"");
+			addNameValuePair(params, ReportField.EX_FIRST_SEEN, format.format(new Date(firstSeen)));
+			addNameValuePair(params, ReportField.EX_LAST_SEEN, format.format(new Date(lastSeen)));
+		}
+		addNameValuePair(params, ReportField.SAMPLE_RATE, sampleRate != null ? sampleRate : String.valueOf(1f));
+		if (breadcrumbs != null) addNameValuePair(params, ReportField.BREADCRUMBS, breadcrumbs);
+		addNameValuePair(params, ReportField.REPORT_TYPE, reportType != null ? reportType : REPORT_TYPE_EXCEPTION);
+		if (stallDuration >= 0) addNameValuePair(params, ReportField.STALL_DURATION, stallDuration+"");
+		if (stallSamples != null) addNameValuePair(params, ReportField.STALL_SAMPLES, stallSamples);
+		if (suppressed > 0) addNameValuePair(params, ReportField.EX_SUPPRESSED, suppressed+"");
+		if (suppressedSame > 0) addNameValuePair(params, ReportField.EX_SUPPRESSED_SAME, suppressedSame+"");
+		if (availableMemory >= 0) addNameValuePair(params, ReportField.DEV_AVAILABLE_MEMORY, availableMemory+"");
+		if (totalMemory >= 0) addNameValuePair(params, ReportField.DEV_TOTAL_MEMORY, totalMemory+"");
+		for (ReportField field : DeviceState.DYNAMIC_FIELDS) {
+			String value = report.get(DeviceState.EXTRA_PREFIX.concat(field.fieldName));
+			if (value != null) addNameValuePair(params, field, value);
+		}
+		Map<ReportField, String> staticFacts = DeviceState.getStatic(this);
+		for (ReportField field : DeviceState.STATIC_FIELDS) {
+			// Recovered crash captures and older reports only have the facts of this process
+			String value = report.get(DeviceState.EXTRA_PREFIX.concat(field.fieldName));
+			if (value == null) value = staticFacts.get(field);
+			if (value != null) addNameValuePair(params, field, value);
+		}
+
+		return params;
+	}
+
+	private static long parseLong(String value, long defaultValue) {
+		if (value == null) return defaultValue;
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private void addNameValuePair(List<NameValuePair> list, ReportField field, String value) {
+		if (config.includes(field)) {
+			list.add(new BasicNameValuePair(field.fieldName, value));
+		}
 	}
 	
 	private boolean isFroyoOrAbove() {
@@ -218,72 +1102,30 @@ public class ExceptionReportService extends ReportingIntentService {
 	}
 
 	public Uri getTargetUrl() throws NameNotFoundException {
-		ApplicationInfo info = getPackageManager().getApplicationInfo(getPackageName(), PackageManager.GET_META_DATA);
-
-		ApplicationInfo ai = getPackageManager().getApplicationInfo(getPackageName(), PackageManager.GET_META_DATA);
-		if (ai.metaData == null) throw new IllegalArgumentException(ExceptionReportService.class.getPackage().getName().concat("targetUrl is undefined"));
-		String key = ExceptionReportService.class.getPackage().getName().concat(".targetUrl");
-		String urlString = null;
-		if (info.metaData.containsKey(key)) {
-			Object url = info.metaData.get(key);
-			if (url instanceof String) {
-				urlString = (String) url;
-			} else if (url instanceof Integer) {
-				int urlResId = info.metaData.getInt(key);
-				urlString = getString(urlResId);
-			}
+		if (config.targetUrl == null) {
+			throw new IllegalArgumentException(ReporterConfig.META_DATA_TARGET_URL.concat(" is undefined"));
 		}
-		if (urlString == null) {
-			throw new IllegalArgumentException(ExceptionReportService.class.getPackage().getName().concat("targetUrl is undefined"));
-		}
-		return Uri.parse(urlString);
+		return Uri.parse(config.targetUrl);
 	}
 
 	public int getMaximumRetryCount() throws NameNotFoundException {
-		try {
-			ApplicationInfo ai = getPackageManager().getApplicationInfo(getPackageName(), PackageManager.GET_META_DATA);
-			return ai.metaData.getInt(META_DATA_MAXIMUM_RETRY_COUNT, DEFAULT_MAXIMUM_RETRY_COUNT);
-		} catch (NameNotFoundException e) {
-			// Should never happen
-			throw e;
-		} 
+		return config.maximumRetryCount;
 	}
 
 	public int getMaximumBackoffExponent() throws NameNotFoundException {
-		try {
-			ApplicationInfo ai = getPackageManager().getApplicationInfo(getPackageName(), PackageManager.GET_META_DATA);
-			return ai.metaData.getInt(META_DATA_MAXIMUM_BACKOFF_EXPONENT, DEFAULT_MAXIMUM_BACKOFF_EXPONENT);
-		} catch (NameNotFoundException e) {
-			// Should never happen
-			throw e;
-		} 
+		return config.maximumBackoffExponent;
 	}
 	
 	public Set<String> getFieldsToSend() throws NameNotFoundException {
-		try {
-			HashSet<String> result = new HashSet<String>();
-			ApplicationInfo ai = getPackageManager().getApplicationInfo(getPackageName(), PackageManager.GET_META_DATA);
-			String fields = ai.metaData.getString(META_DATA_FIELDS_TO_SEND);
-			if (fields == null) fields = DEFAULT_FIELDS_TO_SEND;
-			StringTokenizer st = new StringTokenizer(fields, ",");
-			while (st.hasMoreTokens()) {
-				result.add(st.nextToken());
-			}
-			return result;
-		} catch (NameNotFoundException e) {
-			// Should never happen
-			throw e;
-		} 
+		Set<String> result = new HashSet<String>();
+		for (ReportField field : config.fieldsToSend) {
+			result.add(field.fieldName);
+		}
+		return result;
 	}
 	
 	public boolean isReportOnFroyo() throws NameNotFoundException {
-		try {
-			ApplicationInfo ai = getPackageManager().getApplicationInfo(getPackageName(), PackageManager.GET_META_DATA);
-			return ai.metaData.getBoolean(META_DATA_REPORT_ON_FROYO, DEFAULT_REPORT_ON_FROYO);
-		} catch (NameNotFoundException e) {
-			// Should never happen
-			throw e;
-		} 
+		return config.reportOnFroyo;
 	}
 
 }
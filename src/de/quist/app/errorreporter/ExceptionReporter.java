@@ -20,44 +20,42 @@
  */
 package de.quist.app.errorreporter;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.io.File;
+import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
 import android.net.Uri;
-import android.os.Environment;
-import android.os.StatFs;
+import android.os.Process;
 import android.os.SystemClock;
-import android.text.TextUtils;
 import android.util.Log;
 
 public final class ExceptionReporter {
 
 	private static final String TAG = ExceptionReporter.class.getSimpleName();
-	private static final String META_DATA_NOTIFICATION_ICON = ExceptionReporter.class.getPackage().getName().concat(".notificationIcon");
-	private static final String META_DATA_NOTIFICATION_TITLE = ExceptionReporter.class.getPackage().getName().concat(".notificationTitle");
-	private static final String META_DATA_NOTIFICATION_TEXT = ExceptionReporter.class.getPackage().getName().concat(".notificationText");
-	private static final String META_DATA_NOTIFICATION_TICKER_TEXT = ExceptionReporter.class.getPackage().getName().concat(".notificationTickerText");
-	
-	private static final int DEFAULT_NOTIFICATION_ICON = android.R.drawable.stat_notify_error;
-	private static final CharSequence DEFAULT_NOTIFICATION_TITLE = "^1 crashed";
-	private static final CharSequence DEFAULT_NOTIFICATION_TEXT = "Click here to help fixing the issue";
-	private static final CharSequence DEFAULT_NOTIFICATION_TICKER_TEXT = "";
+
+	/**
+	 * Id of the notification about reports awaiting approval.
+	 */
+	static final int NOTIFICATION_ID = 0x41455230; // "AER0"
 
 	/**
 	 * Registers this context and returns an error handler object
@@ -71,10 +69,12 @@ public final class ExceptionReporter {
 		if (handler instanceof Handler) {
 			Handler errHandler = (Handler) handler;
 			errHandler.errorHandler.setContext(context);
+			errHandler.errorHandler.drainJournal();
 			return errHandler.errorHandler;
 		} else {
 			ExceptionReporter errHandler = new ExceptionReporter(handler, context);
 			Thread.setDefaultUncaughtExceptionHandler(errHandler.handler);
+			errHandler.drainJournal();
 			return errHandler;
 		}
 	}
@@ -87,13 +87,40 @@ public final class ExceptionReporter {
 		}
 	}
 
+	private static boolean journalDrainRequested = false;
+	private static RateLimiter rateLimiter;
+	private static Sampler sampler;
+	private static Boolean approvalRequired;
+
 	private Context context;
 	private Handler handler;
-	private ApplicationInfo applicationInfo;
+	private CrashCapture crashCapture;
+	private Breadcrumbs breadcrumbs;
+	private ThreadPoolExecutor asyncExecutor;
+	/** Kept, so later reports only read what has been written since */
+	private ReportJournal journal;
 
 	private ExceptionReporter(UncaughtExceptionHandler defaultHandler, Context context) {
 		this.handler = new Handler(defaultHandler);
 		this.setContext(context);
+		boolean reporterProcess = isReporterProcess(this.context);
+		if (!reporterProcess) {
+			// Reserve everything needed to capture a crash while memory is
+			// still available. The reporter process must neither use the
+			// capture of the app process nor move it aside while it's in use.
+			File directory = this.context.getFilesDir();
+			CrashCapture.movePrevious(directory);
+			try {
+				this.crashCapture = new CrashCapture(directory);
+			} catch (IOException e) {
+				Log.w(TAG, "Could not prepare crash capture", e);
+			}
+		}
+		ReporterConfig config = ReporterConfig.get(this.context);
+		this.journal = new ReportJournal(this.context.getFilesDir(), config.retention);
+		if (config.breadcrumbs > 0) this.breadcrumbs = new Breadcrumbs(config.breadcrumbs);
+		// The main thread of the reporter process only runs the service
+		if (config.stallTimeout > 0 && !reporterProcess) new StallWatchdog(this, config.stallTimeout, config.stallSamples).start();
 	}
 
 	private class Handler implements UncaughtExceptionHandler {
@@ -108,9 +135,18 @@ public final class ExceptionReporter {
 
 		@Override
 		public void uncaughtException(Thread thread, Throwable ex) {
+			// First write the crash using preallocated memory only, as the
+			// regular reporting might fail e.g. because of an OutOfMemoryError
+			try {
+				if (crashCapture != null) crashCapture.capture(thread, ex, System.currentTimeMillis());
+			} catch (Throwable e) {
+				Log.e(TAG, "Error while capturing exception", e);
+			}
 			try {
-				reportException(thread, ex, null, false);
-			} catch (Exception e) {
+				if (reportException(thread, ex, null, false, System.currentTimeMillis()) && crashCapture != null) {
+					crashCapture.clear();
+				}
+			} catch (Throwable e) {
 				Log.e(TAG, "Error while reporting exception", e);
 			}
 			subject.uncaughtException(thread, ex);
@@ -118,6 +154,19 @@ public final class ExceptionReporter {
 
 	}
 
+	/**
+	 * Records an event which is attached to the following error reports,
+	 * e.g. a screen change or a network call. Only the most recent events
+	 * are kept. This is cheap enough to be called on hot paths: it neither
+	 * locks nor allocates.
+	 * 
+	 * @param category A short category like <tt>"screen"</tt> or <tt>null</tt>
+	 * @param message The event
+	 */
+	public void addBreadcrumb(String category, String message) {
+		if (breadcrumbs != null) breadcrumbs.record(System.currentTimeMillis(), category, message);
+	}
+
 	/**
 	 * Sends an error report.
 	 * 
@@ -125,7 +174,7 @@ public final class ExceptionReporter {
 	 * @param ex The exception
 	 */
 	public void reportException(Thread thread, Throwable ex) {
-		reportException(thread, ex, null, true);
+		reportException(thread, ex, null, true, System.currentTimeMillis());
 	}
 
 	/**
@@ -135,14 +184,81 @@ public final class ExceptionReporter {
 	 * @param ex The exception
 	 */
 	public void reportException(Thread thread, Throwable ex, String extraMessage) {
-		reportException(thread, ex, extraMessage, true);
+		reportException(thread, ex, extraMessage, true, System.currentTimeMillis());
+	}
+
+	/**
+	 * Sends an error report without blocking the calling thread. The report
+	 * is only queued and processed by a background thread, which makes this
+	 * suitable for e.g. request handling code. If too many reports are
+	 * waiting, the <tt>asyncOverflowPolicy</tt> decides which one is dropped.
+	 * 
+	 * @param thread The thread where the exception occurred (e.g. {@link java.lang.Thread#currentThread()})
+	 * @param ex The exception
+	 */
+	public void reportExceptionAsync(Thread thread, Throwable ex) {
+		reportExceptionAsync(thread, ex, null);
+	}
+
+	/**
+	 * Sends an error report with an extra message without blocking the
+	 * calling thread.
+	 * 
+	 * @param thread The thread where the exception occurred (e.g. {@link java.lang.Thread#currentThread()})
+	 * @param ex The exception
+	 * @see #reportExceptionAsync(Thread, Throwable)
+	 */
+	public void reportExceptionAsync(final Thread thread, final Throwable ex, final String extraMessage) {
+		final long time = System.currentTimeMillis();
+		getAsyncExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reportException(thread, ex, extraMessage, true, time);
+				} catch (Throwable e) {
+					Log.e(TAG, "Error while reporting exception", e);
+				}
+			}
+		});
 	}
 	
-	private void reportException(Thread thread, Throwable ex, String extraMessage, boolean manual) {
-		final Writer writer = new StringWriter();
-		final PrintWriter pWriter = new PrintWriter(writer);
-		ex.printStackTrace(pWriter);
-		String stackTrace = writer.toString();
+	/**
+	 * Reports a stall of the main thread detected by the {@link StallWatchdog}.
+	 */
+	void reportStall(Thread thread, StallException stall) {
+		reportException(thread, stall, null, false, System.currentTimeMillis());
+	}
+	
+	/**
+	 * @param time The time the exception occurred
+	 * @return <tt>true</tt> if the report has been written to the journal,
+	 *         has been handed over to the service or the notification or
+	 *         has been left out by sampling or the rate limit
+	 */
+	private boolean reportException(Thread thread, Throwable ex, String extraMessage, boolean manual, long time) {
+		long start = System.nanoTime();
+		Metrics metrics = Metrics.get();
+		metrics.increment(ReporterMetrics.Counter.CAPTURED);
+		Sampler sampler = getSampler(context);
+		float sampleRate = sampler.getRate(ex.getClass().getName(), manual);
+		if (!sampler.isSampled(ex.getClass().getName(), sampleRate)) {
+			Log.v(TAG, "Not sampled: " + ex.getClass().getName());
+			// Written out with the next queued report or by getMetrics(),
+			// so suppressing stays free of file I/O
+			metrics.increment(ReporterMetrics.Counter.SUPPRESSED);
+			return true;
+		}
+
+		String fingerprint = Fingerprint.of(ex);
+		RateLimiter.Permit permit = getRateLimiter(context).acquire(fingerprint, SystemClock.elapsedRealtime());
+		if (permit == null) {
+			Log.d(TAG, "Too many error reports. Suppressing " + ex.getClass().getName());
+			metrics.increment(ReporterMetrics.Counter.SUPPRESSED);
+			return true;
+		}
+
+		ReporterConfig config = ReporterConfig.get(context);
+		StackTraceCompactor.Result stackTrace = config.stackTraceCompactor.compact(ex);
 
 		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ");
 		
@@ -151,95 +267,248 @@ public final class ExceptionReporter {
 		intent.setAction(ExceptionReportService.ACTION_SEND_REPORT);
 		intent.putExtra(ExceptionReportService.EXTRA_THREAD_NAME, thread.getName());
 		intent.putExtra(ExceptionReportService.EXTRA_EXCEPTION_CLASS, ex.getClass().getName());
-		intent.putExtra(ExceptionReportService.EXTRA_EXCEPTION_TIME, format.format(new Date()));
-		intent.putExtra(ExceptionReportService.EXTRA_STACK_TRACE, stackTrace);
+		intent.putExtra(ExceptionReportService.EXTRA_EXCEPTION_TIME, format.format(new Date(time)));
+		intent.putExtra(ExceptionReportService.EXTRA_FINGERPRINT, fingerprint);
+		intent.putExtra(ExceptionReportService.EXTRA_STACK_TRACE, stackTrace.stackTrace);
+		intent.putExtra(ExceptionReportService.EXTRA_STACK_TRACE_SIZE, stackTrace.originalBytes);
 		intent.putExtra(ExceptionReportService.EXTRA_MESSAGE, ex.getMessage());
 		intent.putExtra(ExceptionReportService.EXTRA_MANUAL_REPORT, manual);
-		intent.putExtra(ExceptionReportService.EXTRA_AVAILABLE_MEMORY, getAvailableInternalMemorySize());
-		intent.putExtra(ExceptionReportService.EXTRA_TOTAL_MEMORY, getTotalInternalMemorySize());
+		intent.putExtra(ExceptionReportService.EXTRA_AVAILABLE_MEMORY, DeviceState.getAvailableStorage());
+		intent.putExtra(ExceptionReportService.EXTRA_TOTAL_MEMORY, DeviceState.getTotalStorage());
+		DeviceState.putExtras(intent, context);
 		if (extraMessage != null) intent.putExtra(ExceptionReportService.EXTRA_EXTRA_MESSAGE, extraMessage);
+		intent.putExtra(ExceptionReportService.EXTRA_SAMPLE_RATE, sampleRate);
+		if (ex instanceof StallException) {
+			StallException stall = (StallException) ex;
+			intent.putExtra(ExceptionReportService.EXTRA_REPORT_TYPE, ExceptionReportService.REPORT_TYPE_STALL);
+			intent.putExtra(ExceptionReportService.EXTRA_STALL_DURATION, stall.duration);
+			intent.putExtra(ExceptionReportService.EXTRA_STALL_SAMPLES, stall.samples);
+		}
+		String breadcrumbs = this.breadcrumbs != null ? this.breadcrumbs.snapshot(time) : null;
+		if (breadcrumbs != null) intent.putExtra(ExceptionReportService.EXTRA_BREADCRUMBS, breadcrumbs);
+		if (permit.suppressed > 0) intent.putExtra(ExceptionReportService.EXTRA_SUPPRESSED, permit.suppressed);
+		if (permit.suppressedSame > 0) intent.putExtra(ExceptionReportService.EXTRA_SUPPRESSED_SAME, permit.suppressedSame);
 
-		intent.setClass(context, ExceptionReportActivity.class);
-		List<ResolveInfo> resolvedActivities = context.getPackageManager().queryIntentActivities(intent, PackageManager.MATCH_DEFAULT_ONLY);
-		if (!resolvedActivities.isEmpty()) {
+		boolean awaitingApproval = isApprovalRequired(context);
+		
+		// Persist the report before handing it off, so it survives if the
+		// reporting process gets killed before it could be sent. Repeated
+		// crashes are collapsed into the report which is still pending.
+		boolean journaled = false;
+		try {
+			long newId = ReportJournal.newId();
+			long reportId = journal.append(newId, fingerprint, time, ExceptionReportService.toReport(intent, awaitingApproval));
+			intent.putExtra(ExceptionReportService.EXTRA_REPORT_ID, reportId);
+			journaled = true;
+			metrics.increment(ReporterMetrics.Counter.QUEUED);
+			if (reportId != newId) {
+				// Merged into a pending report, so the suppressed counts go with the next one
+				getRateLimiter(context).restore(fingerprint, permit);
+			}
+			if (config.passReportIds) {
+				// The service and the activity read the report from the journal
+				intent = new Intent(ExceptionReportService.ACTION_SEND_REPORT);
+				intent.setData((Uri.parse("custom://" + SystemClock.elapsedRealtime())));
+				intent.putExtra(ExceptionReportService.EXTRA_REPORT_ID, reportId);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write report to the journal", e);
+		}
+		
+		boolean handedOver = true;
+		if (awaitingApproval) {
 			Log.v(TAG, ExceptionReportActivity.class.getSimpleName() + " is registered. Generating notification...");
-			Notification notification = new Notification();
-			notification.icon = getNotificationIcon();
-			notification.tickerText = getNotificationTickerText();
-			notification.flags |= Notification.FLAG_AUTO_CANCEL;
-			notification.setLatestEventInfo(context, getNotificationTitle(), getNotificationMessage(), PendingIntent.getActivity(context, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT));
-			NotificationManager nm = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
-			nm.notify(new Random().nextInt(), notification);
+			showNotification(context, intent);
 		} else {
 			intent.setClass(context, ExceptionReportService.class);
 			ComponentName service = context.startService(intent);
 			if (service == null) {
+				handedOver = false;
 				Log.e(TAG, "Service has not be added to your AndroidManifest.xml\n" +
 						"Add the following line to your manifest:\n" +
 						"<service android:name=\""+ExceptionReportService.class.getName()+"\" android:process=\":exceptionReporter\"/>");
 			}
 		}
+		metrics.recordCaptureTime(System.nanoTime() - start);
+		flushMetrics();
+		return journaled || handedOver;
+	}
+
+	/**
+	 * Returns the metrics of the error reporter of the app process and the
+	 * process of the {@link ExceptionReportService}. Values the service
+	 * process hasn't written out yet are missing.
+	 */
+	public ReporterMetrics getMetrics() {
+		return flushMetrics();
+	}
+
+	private ReporterMetrics flushMetrics() {
+		try {
+			return Metrics.get().flush(context.getFilesDir());
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write metrics", e);
+			return Metrics.get().snapshot();
+		}
 	}
 	
-	private CharSequence getNotificationTickerText() {
-		CharSequence result = DEFAULT_NOTIFICATION_TICKER_TEXT;
-		ApplicationInfo info = getApplicationInfo();
-		if (info != null && info.metaData != null && info.metaData.containsKey(META_DATA_NOTIFICATION_TICKER_TEXT)) {
-			int resId = info.metaData.getInt(META_DATA_NOTIFICATION_TICKER_TEXT);
-			result = context.getText(resId);
+	private synchronized ThreadPoolExecutor getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			ReporterConfig config = ReporterConfig.get(context);
+			asyncExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(config.asyncQueueSize), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, TAG + "-async");
+							thread.setDaemon(true);
+							return thread;
+						}
+					}, new OverflowHandler(config.asyncOverflowPolicy));
 		}
-		return TextUtils.expandTemplate(result, context.getPackageManager().getApplicationLabel(info));
+		return asyncExecutor;
 	}
 
-	private int getNotificationIcon() {
-		int result = DEFAULT_NOTIFICATION_ICON;
-		ApplicationInfo info = getApplicationInfo();
-		if (info != null && info.metaData != null && info.metaData.containsKey(META_DATA_NOTIFICATION_ICON)) {
-			result = info.metaData.getInt(META_DATA_NOTIFICATION_ICON);
+	/**
+	 * Handles asynchronous reports which don't fit into the queue anymore.
+	 * Dropped reports are counted as captured and suppressed.
+	 */
+	private class OverflowHandler implements RejectedExecutionHandler {
+
+		private final String policy;
+
+		private OverflowHandler(String policy) {
+			this.policy = policy;
 		}
-		return result;
-	}
 
-	private CharSequence getNotificationTitle() {
-		CharSequence result = DEFAULT_NOTIFICATION_TITLE;
-		ApplicationInfo info = getApplicationInfo();
-		if (info != null && info.metaData != null && info.metaData.containsKey(META_DATA_NOTIFICATION_TITLE)) {
-			int resId = info.metaData.getInt(META_DATA_NOTIFICATION_TITLE);
-			result = context.getText(resId);
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (policy.equals(ReporterConfig.ASYNC_OVERFLOW_CALLER_RUNS)) {
+				r.run();
+				return;
+			}
+			if (policy.equals(ReporterConfig.ASYNC_OVERFLOW_DROP_OLDEST) && executor.getQueue().poll() != null) {
+				dropped();
+				executor.execute(r);
+				return;
+			}
+			dropped();
+		}
+
+		private void dropped() {
+			Log.d(TAG, "Too many asynchronous error reports. Dropping one");
+			Metrics metrics = Metrics.get();
+			metrics.increment(ReporterMetrics.Counter.CAPTURED);
+			metrics.increment(ReporterMetrics.Counter.SUPPRESSED);
 		}
-		return TextUtils.expandTemplate(result, context.getPackageManager().getApplicationLabel(info));
+
 	}
 	
-	private CharSequence getNotificationMessage() {
-		CharSequence result = DEFAULT_NOTIFICATION_TEXT;
-		ApplicationInfo info = getApplicationInfo();
-		if (info != null && info.metaData != null && info.metaData.containsKey(META_DATA_NOTIFICATION_TEXT)) {
-			int resId = info.metaData.getInt(META_DATA_NOTIFICATION_TEXT);
-			result = context.getText(resId);
+	static synchronized Sampler getSampler(Context context) {
+		if (sampler == null) {
+			ReporterConfig config = ReporterConfig.get(context);
+			sampler = new Sampler(Sampler.getInstallationId(context.getFilesDir()), config.manualSampleRates, config.automaticSampleRates);
 		}
-		return TextUtils.expandTemplate(result, context.getPackageManager().getApplicationLabel(info));
+		return sampler;
 	}
 	
-	private ApplicationInfo getApplicationInfo() {
-		if (this.applicationInfo != null) return this.applicationInfo;
-		ApplicationInfo info;
+	private static synchronized RateLimiter getRateLimiter(Context context) {
+		if (rateLimiter == null) {
+			ReporterConfig config = ReporterConfig.get(context);
+			rateLimiter = new RateLimiter(config.rateLimitCapacity, config.rateLimitPerHour,
+					config.fingerprintRateLimitCapacity, config.fingerprintRateLimitPerHour, SystemClock.elapsedRealtime());
+		}
+		return rateLimiter;
+	}
+	
+	/**
+	 * @return <tt>true</tt> if the {@link ExceptionReportActivity} is
+	 *         registered and reports have to be approved by the user. The
+	 *         manifest can't change while the process is running, so this is
+	 *         only resolved once.
+	 */
+	static synchronized boolean isApprovalRequired(Context context) {
+		if (approvalRequired == null) {
+			Intent intent = new Intent(ExceptionReportService.ACTION_SEND_REPORT);
+			intent.setClass(context, ExceptionReportActivity.class);
+			List<ResolveInfo> resolvedActivities = context.getPackageManager().queryIntentActivities(intent, PackageManager.MATCH_DEFAULT_ONLY);
+			approvalRequired = !resolvedActivities.isEmpty();
+		}
+		return approvalRequired;
+	}
+	
+	/**
+	 * @return <tt>true</tt> if this is the process of the
+	 *         {@link ExceptionReportService}, if it runs in a process of its
+	 *         own (e.g. <tt>:exceptionReporter</tt>)
+	 */
+	static boolean isReporterProcess(Context context) {
+		String serviceProcess;
 		try {
-			info = context.getPackageManager().getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
-			this.applicationInfo = info;
-			return info;
+			PackageManager pm = context.getPackageManager();
+			serviceProcess = pm.getServiceInfo(new ComponentName(context, ExceptionReportService.class), 0).processName;
+			if (serviceProcess == null || serviceProcess.equals(pm.getApplicationInfo(context.getPackageName(), 0).processName)) {
+				return false;
+			}
 		} catch (NameNotFoundException e) {
-			return null;
+			return false;
+		}
+		ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		List<RunningAppProcessInfo> processes = am.getRunningAppProcesses();
+		if (processes == null) return false;
+		int pid = Process.myPid();
+		for (RunningAppProcessInfo process : processes) {
+			if (process.pid == pid) return serviceProcess.equals(process.processName);
 		}
+		return false;
 	}
 	
-	private long getAvailableInternalMemorySize() { 
-        StatFs stat = new StatFs(Environment.getDataDirectory().getPath()); 
-        return stat.getAvailableBlocks() * stat.getBlockSize(); 
-    } 
-     
-    private long getTotalInternalMemorySize() { 
-        StatFs stat = new StatFs(Environment.getDataDirectory().getPath()); 
-        return stat.getBlockCount() * stat.getBlockSize(); 
-    } 
+	/**
+	 * Shows or updates the notification which opens the
+	 * {@link ExceptionReportActivity}. All reports awaiting approval share
+	 * one notification showing their count, which lets the user review them
+	 * together. A report which couldn't be written to the journal is passed
+	 * along with the notification instead.
+	 */
+	static void showNotification(Context context, Intent intent) {
+		int pending = 0;
+		if (intent.hasExtra(ExceptionReportService.EXTRA_REPORT_ID)) {
+			try {
+				pending = ExceptionReportService.readAwaitingApproval(context).size();
+			} catch (IOException e) {
+				Log.w(TAG, "Could not count reports awaiting approval", e);
+			}
+		}
+		Intent content = pending > 0 ? new Intent(ExceptionReportActivity.ACTION_REVIEW_REPORTS) : intent;
+		content.setClass(context, ExceptionReportActivity.class);
+		ReporterConfig config = ReporterConfig.get(context);
+		Notification notification = new Notification();
+		notification.icon = config.notificationIcon;
+		notification.tickerText = config.getText(context, config.notificationTickerText, ReporterConfig.DEFAULT_NOTIFICATION_TICKER_TEXT);
+		notification.flags |= Notification.FLAG_AUTO_CANCEL | Notification.FLAG_ONLY_ALERT_ONCE;
+		if (pending > 1) notification.number = pending;
+		CharSequence title = config.getText(context, config.notificationTitle, ReporterConfig.DEFAULT_NOTIFICATION_TITLE);
+		CharSequence text = config.getText(context, config.notificationText, ReporterConfig.DEFAULT_NOTIFICATION_TEXT);
+		notification.setLatestEventInfo(context, title, text, PendingIntent.getActivity(context, 0, content, PendingIntent.FLAG_UPDATE_CURRENT));
+		NotificationManager nm = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+		nm.notify(NOTIFICATION_ID, notification);
+	}
+	
+	/**
+	 * Asks the {@link ExceptionReportService} to send reports which are still
+	 * pending in the journal, e.g. because the device has been rebooted
+	 * before they could be sent, or crashes which could only be captured
+	 * with preallocated memory. Only done once per process.
+	 */
+	private void drainJournal() {
+		synchronized (ExceptionReporter.class) {
+			if (journalDrainRequested) return;
+			journalDrainRequested = true;
+		}
+		File directory = context.getFilesDir();
+		if (!new ReportJournal(directory).mightHavePendingReports() && CrashCapture.listPending(directory).length == 0) return;
+		Intent intent = new Intent(ExceptionReportService.ACTION_DRAIN_JOURNAL);
+		intent.setClass(context, ExceptionReportService.class);
+		context.startService(intent);
+	}
 
 }
@@ -0,0 +1,110 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes a stable fingerprint of an exception which is equal for all
+ * occurrences of the same crash. It is built from the exception classes and
+ * the top frames of the cause chain. Line numbers, messages and generated
+ * names (anonymous classes, lambdas, synthetic accessors) are ignored, so the
+ * fingerprint survives unrelated code changes.
+ */
+final class Fingerprint {
+
+	/**
+	 * Number of frames per throwable which contribute to the fingerprint.
+	 */
+	static final int FRAMES_PER_THROWABLE = 5;
+
+	/**
+	 * Number of throwables of the cause chain which contribute to the fingerprint.
+	 */
+	static final int MAXIMUM_CAUSE_DEPTH = 5;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private Fingerprint() {
+	}
+
+	/**
+	 * @return The fingerprint as a hex string of 16 characters
+	 */
+	static String of(Throwable ex) {
+		StringBuilder normalized = new StringBuilder(512);
+		Throwable current = ex;
+		for (int depth = 0; current != null && depth < MAXIMUM_CAUSE_DEPTH; depth++) {
+			if (depth > 0) normalized.append("|caused by|");
+			appendNormalized(normalized, CrashCapture.getClassName(current));
+			StackTraceElement[] frames = current.getStackTrace();
+			for (int i = 0; i < frames.length && i < FRAMES_PER_THROWABLE; i++) {
+				normalized.append('\n');
+				appendNormalized(normalized, frames[i].getClassName());
+				normalized.append('.');
+				appendNormalized(normalized, frames[i].getMethodName());
+			}
+			if (current.getCause() == current) break;
+			current = current.getCause();
+		}
+		return hash(normalized.toString());
+	}
+
+	/**
+	 * Appends a class or method name without the parts the compiler or
+	 * runtime generates: numbers following a <tt>$</tt> (anonymous classes,
+	 * <tt>access$000</tt>, <tt>lambda$run$0</tt>) and hidden class suffixes
+	 * (<tt>$$Lambda$12/0x0000000800c02a00</tt>).
+	 */
+	static void appendNormalized(StringBuilder out, String name) {
+		int length = name.length();
+		int slash = name.indexOf('/');
+		if (slash >= 0) length = slash;
+		boolean afterDollar = false;
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if (afterDollar && c >= '0' && c <= '9') continue;
+			afterDollar = c == '$';
+			out.append(c);
+		}
+	}
+
+	private static String hash(String normalized) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(normalized.getBytes("UTF-8"));
+			char[] result = new char[16];
+			for (int i = 0; i < 8; i++) {
+				result[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+				result[2 * i + 1] = HEX[digest[i] & 0xF];
+			}
+			return new String(result);
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is always available
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always available
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,271 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import android.util.Log;
+
+/**
+ * Client side of the frame dictionary described in
+ * {@link FrameDictionaryDecoder}. It assigns ids to the frames of the stack
+ * traces it encodes and remembers which of them the server has accepted.
+ * Accepted frames are sent as references, all others in full. Accepted
+ * frames are kept in a file, so they survive restarts. Frames which have only
+ * been sent are kept in memory, as reports are encoded again whenever they
+ * are sent. The dictionary holds at most {@link #MAXIMUM_FRAMES} frames; if it
+ * is full, the oldest frame which hasn't been accepted yet makes room, and
+ * once all of them are accepted, further frames are always sent in full.
+ * <p>
+ * Layout of the file: <tt>[int magic][UTF dictionary id][int count]</tt>
+ * followed by <tt>[int id][UTF frame]</tt> per accepted frame.
+ */
+final class FrameDictionary {
+
+	private static final String TAG = FrameDictionary.class.getSimpleName();
+
+	static final String FILE_NAME = "errorreporter.frames";
+
+	static final int MAXIMUM_FRAMES = 4096;
+
+	/**
+	 * Longer frames are always sent in full.
+	 */
+	static final int MAXIMUM_FRAME_LENGTH = 1024;
+
+	private static final int MAGIC = 0x41455247; // "AERG"
+
+	/**
+	 * A stack trace encoded against a dictionary.
+	 */
+	static final class Encoded {
+
+		final String dictionaryId;
+		final String frames;
+
+		private Encoded(String dictionaryId, String frames) {
+			this.dictionaryId = dictionaryId;
+			this.frames = frames;
+		}
+
+	}
+
+	private final File file;
+	private String dictionaryId;
+	/**
+	 * Ids aren't reused within a process, so an acknowledgement can't mark a
+	 * frame which replaced an evicted one.
+	 */
+	private int nextId;
+	private final Map<Integer, String> frames = new HashMap<Integer, String>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	/** Ids of the frames the server hasn't accepted yet, oldest first */
+	private final Set<Integer> unacknowledged = new LinkedHashSet<Integer>();
+	private int generation;
+
+	FrameDictionary(File directory) {
+		this.file = new File(directory, FILE_NAME);
+		try {
+			load();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not read frame dictionary, starting a new one", e);
+			clear();
+		}
+	}
+
+	synchronized Encoded encode(String stackTrace) {
+		StringBuilder result = new StringBuilder(stackTrace.length());
+		int start = 0;
+		while (start <= stackTrace.length()) {
+			int end = stackTrace.indexOf('\n', start);
+			if (end < 0) end = stackTrace.length();
+			if (start > 0) result.append('\n');
+			String line = stackTrace.substring(start, end);
+			Integer id = null;
+			if (line.startsWith(FrameDictionaryDecoder.FRAME_PREFIX)) {
+				String frame = line.substring(FrameDictionaryDecoder.FRAME_PREFIX.length());
+				id = ids.get(frame);
+				if (id == null && frame.length() <= MAXIMUM_FRAME_LENGTH && makeRoom()) {
+					id = nextId++;
+					add(id, frame);
+					unacknowledged.add(id);
+				}
+				if (id != null && !unacknowledged.contains(id)) {
+					result.append(FrameDictionaryDecoder.REFERENCE).append(id);
+				} else if (id != null) {
+					result.append(FrameDictionaryDecoder.DEFINITION).append(id).append(' ').append(frame);
+				}
+			}
+			if (id == null) result.append(FrameDictionaryDecoder.LITERAL).append(line);
+			start = end + 1;
+		}
+		return new Encoded(dictionaryId, result.toString());
+	}
+
+	/**
+	 * Marks the frames defined by a report as known to the server, once it
+	 * has accepted the report.
+	 */
+	synchronized void acknowledge(String dictionaryId, String frames) {
+		// Ids of a dictionary which has been reset in between are meaningless
+		if (!this.dictionaryId.equals(dictionaryId)) return;
+		boolean changed = false;
+		int start = 0;
+		while (start < frames.length()) {
+			int end = frames.indexOf('\n', start);
+			if (end < 0) end = frames.length();
+			if (frames.charAt(start) == FrameDictionaryDecoder.DEFINITION) {
+				int space = frames.indexOf(' ', start);
+				Integer id = Integer.valueOf(frames.substring(start + 1, space));
+				// Frames evicted since the report has been encoded stay unknown
+				if (frames.substring(space + 1, end).equals(this.frames.get(id)) && unacknowledged.remove(id)) {
+					changed = true;
+				}
+			}
+			start = end + 1;
+		}
+		if (!changed) return;
+		try {
+			save();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write frame dictionary", e);
+		}
+	}
+
+	/**
+	 * Starts a new dictionary because the server lost the current one.
+	 */
+	synchronized void reset() {
+		clear();
+		generation++;
+		try {
+			save();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write frame dictionary", e);
+		}
+	}
+
+	/**
+	 * @return A number which changes whenever the dictionary is reset
+	 */
+	synchronized int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Evicts the oldest unacknowledged frame if the dictionary is full.
+	 *
+	 * @return Whether there is room for another frame
+	 */
+	private boolean makeRoom() {
+		if (frames.size() < MAXIMUM_FRAMES) return true;
+		Iterator<Integer> oldest = unacknowledged.iterator();
+		if (!oldest.hasNext()) return false;
+		Integer id = oldest.next();
+		oldest.remove();
+		ids.remove(frames.remove(id));
+		return true;
+	}
+
+	private void add(int id, String frame) {
+		frames.put(id, frame);
+		ids.put(frame, id);
+	}
+
+	private void clear() {
+		dictionaryId = UUID.randomUUID().toString();
+		nextId = 1;
+		frames.clear();
+		ids.clear();
+		unacknowledged.clear();
+	}
+
+	private void load() throws IOException {
+		if (!file.exists()) {
+			clear();
+			return;
+		}
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream fileIn = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < data.length) {
+				int count = fileIn.read(data, read, data.length - read);
+				if (count < 0) break;
+				read += count;
+			}
+		} finally {
+			fileIn.close();
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		if (in.readInt() != MAGIC) throw new IOException("Unknown file format");
+		dictionaryId = in.readUTF();
+		nextId = 1;
+		int count = in.readInt();
+		for (int i = 0; i < count && i < MAXIMUM_FRAMES; i++) {
+			int id = in.readInt();
+			add(id, in.readUTF());
+			// Ids of frames which weren't accepted before the restart may be
+			// used again, as a frame is always defined before it is referenced
+			nextId = Math.max(nextId, id + 1);
+		}
+	}
+
+	/**
+	 * Replaces the file, so a crash while writing leaves the previous version.
+	 */
+	private void save() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeUTF(dictionaryId);
+		out.writeInt(frames.size() - unacknowledged.size());
+		for (Map.Entry<Integer, String> frame : frames.entrySet()) {
+			if (unacknowledged.contains(frame.getKey())) continue;
+			out.writeInt(frame.getKey());
+			out.writeUTF(frame.getValue());
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		try {
+			bytes.writeTo(fileOut);
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+		if (!tmp.renameTo(file)) throw new IOException("Could not replace " + file);
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reference decoder for stack traces sent with a frame dictionary (the
+ * <tt>frameDictionary</tt> meta-data). It has no Android dependencies, so it
+ * can be used on the server. It keeps the dictionaries of all devices in
+ * memory; a real server would store them.
+ * <p>
+ * The <tt>exStackTraceFrames</tt> field holds the lines of the stack trace
+ * separated by <tt>\n</tt>. Each line starts with a marker:
+ * <ul>
+ * <li><tt>=text</tt>: the line as it is</li>
+ * <li><tt>+id frame</tt>: the line <tt>\tat frame</tt>, which defines the frame id</li>
+ * <li><tt>#id</tt>: the line <tt>\tat frame</tt> of a frame defined earlier</li>
+ * </ul>
+ * Ids belong to the dictionary named by the <tt>frameDictionary</tt> field.
+ * A device only references frames after a report defining them has been
+ * accepted. If the server doesn't know a referenced frame, e.g. because it
+ * lost the dictionary, it answers <tt>409 Conflict</tt>. The device then
+ * starts a new dictionary and sends the report again with all frames in
+ * full.
+ */
+public final class FrameDictionaryDecoder {
+
+	static final char LITERAL = '=';
+	static final char DEFINITION = '+';
+	static final char REFERENCE = '#';
+	static final String FRAME_PREFIX = "\tat ";
+
+	private final Map<String, Map<Integer, String>> dictionaries = new HashMap<String, Map<Integer, String>>();
+
+	/**
+	 * Decodes a stack trace and learns the frames it defines.
+	 *
+	 * @return The stack trace or <tt>null</tt> if it references a frame
+	 *         which is unknown, which should be answered with <tt>409</tt>
+	 * @throws IOException If the value is malformed
+	 */
+	public synchronized String decode(String dictionaryId, String frames) throws IOException {
+		Map<Integer, String> dictionary = dictionaries.get(dictionaryId);
+		if (dictionary == null) {
+			dictionary = new HashMap<Integer, String>();
+			dictionaries.put(dictionaryId, dictionary);
+		}
+		StringBuilder result = new StringBuilder(frames.length() * 2);
+		boolean complete = true;
+		int start = 0;
+		while (start <= frames.length()) {
+			int end = frames.indexOf('\n', start);
+			if (end < 0) end = frames.length();
+			if (start > 0) result.append('\n');
+			if (end == start) throw new IOException("Empty line in frames");
+			char marker = frames.charAt(start);
+			if (marker == LITERAL) {
+				result.append(frames, start + 1, end);
+			} else if (marker == DEFINITION) {
+				int space = frames.indexOf(' ', start);
+				if (space < 0 || space > end) throw new IOException("Malformed frame definition");
+				String frame = frames.substring(space + 1, end);
+				dictionary.put(parseId(frames.substring(start + 1, space)), frame);
+				result.append(FRAME_PREFIX).append(frame);
+			} else if (marker == REFERENCE) {
+				String frame = dictionary.get(parseId(frames.substring(start + 1, end)));
+				// Keep going, so the definitions of this report aren't lost
+				if (frame == null) complete = false;
+				result.append(FRAME_PREFIX).append(frame);
+			} else {
+				throw new IOException("Unknown marker " + marker);
+			}
+			start = end + 1;
+		}
+		return complete ? result.toString() : null;
+	}
+
+	private static int parseId(String id) throws IOException {
+		try {
+			return Integer.parseInt(id);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed frame id " + id);
+		}
+	}
+
+}
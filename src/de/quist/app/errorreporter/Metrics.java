@@ -0,0 +1,157 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the {@link ReporterMetrics} of the current process. Recording only
+ * updates atomic counters. Every process adds what it recorded since its
+ * last flush to a shared file, which is locked while doing so. The totals of
+ * all processes are read back from there.
+ * <p>
+ * Layout of the file: <tt>[int magic][int count][long value]*</tt> in the
+ * order of {@link ReporterMetrics}.
+ */
+final class Metrics {
+
+	static final String FILE_NAME = "errorreporter.metrics";
+
+	private static final int MAGIC = 0x4145524d; // "AERM"
+
+	private static final Metrics INSTANCE = new Metrics();
+
+	private final AtomicLongArray values = new AtomicLongArray(ReporterMetrics.SIZE);
+	private final long[] flushed = new long[ReporterMetrics.SIZE];
+
+	static Metrics get() {
+		return INSTANCE;
+	}
+
+	void increment(ReporterMetrics.Counter counter) {
+		values.incrementAndGet(counter.ordinal());
+	}
+
+	void add(ReporterMetrics.Counter counter, long delta) {
+		values.addAndGet(counter.ordinal(), delta);
+	}
+
+	void recordCaptureTime(long nanos) {
+		record(ReporterMetrics.CAPTURE_TIME, nanos);
+	}
+
+	void recordUploadLatency(long nanos) {
+		record(ReporterMetrics.UPLOAD_LATENCY, nanos);
+	}
+
+	void recordStallDuration(long nanos) {
+		record(ReporterMetrics.STALL_DURATION, nanos);
+	}
+
+	void recordWatchdogOverhead(long nanos) {
+		record(ReporterMetrics.WATCHDOG_OVERHEAD, nanos);
+	}
+
+	private void record(int offset, long nanos) {
+		long micros = nanos / 1000;
+		values.incrementAndGet(offset);
+		values.addAndGet(offset + 1, micros);
+		values.incrementAndGet(offset + 2 + ReporterMetrics.Histogram.getBucket(micros));
+	}
+
+	/**
+	 * @return The values recorded by this process
+	 */
+	ReporterMetrics snapshot() {
+		long[] current = new long[ReporterMetrics.SIZE];
+		for (int i = 0; i < current.length; i++) {
+			current[i] = values.get(i);
+		}
+		return new ReporterMetrics(current);
+	}
+
+	/**
+	 * Adds the values recorded since the last flush to the file and returns
+	 * the totals of all processes.
+	 */
+	synchronized ReporterMetrics flush(File directory) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(directory, FILE_NAME), "rw");
+		try {
+			FileLock lock = file.getChannel().lock();
+			try {
+				long[] totals = read(file);
+				long[] current = new long[ReporterMetrics.SIZE];
+				for (int i = 0; i < current.length; i++) {
+					current[i] = values.get(i);
+					totals[i] += current[i] - flushed[i];
+				}
+				write(file, totals);
+				System.arraycopy(current, 0, flushed, 0, current.length);
+				return new ReporterMetrics(totals);
+			} finally {
+				lock.release();
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	private static long[] read(RandomAccessFile file) throws IOException {
+		long[] totals = new long[ReporterMetrics.SIZE];
+		if (file.length() < 8) return totals;
+		byte[] data = new byte[(int) file.length()];
+		file.seek(0);
+		file.readFully(data);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		// Anything unknown starts from scratch
+		if (in.readInt() != MAGIC) return totals;
+		int count = in.readInt();
+		if (count < 0 || data.length < 8 + 8l * count) return totals;
+		// Values added by later versions are kept at 0
+		for (int i = 0; i < count && i < totals.length; i++) {
+			totals[i] = in.readLong();
+		}
+		return totals;
+	}
+
+	private static void write(RandomAccessFile file, long[] totals) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + 8 * totals.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(totals.length);
+		for (long value : totals) {
+			out.writeLong(value);
+		}
+		file.seek(0);
+		file.write(bytes.toByteArray());
+		file.setLength(bytes.size());
+	}
+
+}
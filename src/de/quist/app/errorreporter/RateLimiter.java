@@ -0,0 +1,154 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits how many reports are created when an exception is thrown over and
+ * over again, e.g. in a loop of a background thread. A report needs a token
+ * from the global bucket and one from the bucket of its fingerprint. Reports
+ * without tokens are suppressed and counted; the counts are attached to the
+ * next report which is let through.
+ */
+final class RateLimiter {
+
+	/**
+	 * Number of fingerprints whose buckets are remembered. The least recently
+	 * used one is forgotten, which only makes the limiter more lenient.
+	 */
+	private static final int MAXIMUM_FINGERPRINTS = 64;
+
+	private static final long HOUR = 60 * 60 * 1000;
+
+	/**
+	 * The suppressed reports to attach to a report which has been let through.
+	 */
+	static final class Permit {
+
+		/** Reports suppressed since the previous permit. */
+		final int suppressed;
+		/** Reports with the same fingerprint suppressed since the previous permit for it. */
+		final int suppressedSame;
+
+		private Permit(int suppressed, int suppressedSame) {
+			this.suppressed = suppressed;
+			this.suppressedSame = suppressedSame;
+		}
+
+	}
+
+	private static final class TokenBucket {
+
+		private final int capacity;
+		private final double tokensPerMillisecond;
+		private double tokens;
+		private long lastRefill;
+		private int suppressed;
+
+		TokenBucket(int capacity, int perHour, long now) {
+			this.capacity = capacity;
+			this.tokensPerMillisecond = perHour / (double) HOUR;
+			this.tokens = capacity;
+			this.lastRefill = now;
+		}
+
+		boolean hasToken(long now) {
+			if (capacity == 0) return true;
+			if (now > lastRefill) {
+				tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMillisecond);
+			}
+			lastRefill = now;
+			return tokens >= 1;
+		}
+
+		void take() {
+			if (capacity != 0) tokens -= 1;
+		}
+
+	}
+
+	private final TokenBucket global;
+	private final int fingerprintCapacity;
+	private final int fingerprintPerHour;
+	private final Map<String, TokenBucket> fingerprints = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+			return size() > MAXIMUM_FINGERPRINTS;
+		}
+
+	};
+
+	/**
+	 * @param capacity Maximum number of reports in a burst, <tt>0</tt> for no limit
+	 * @param perHour Number of reports per hour after a burst
+	 * @param fingerprintCapacity Maximum number of reports of the same crash in a burst, <tt>0</tt> for no limit
+	 * @param fingerprintPerHour Number of reports of the same crash per hour after a burst
+	 * @param now The current time as of {@link android.os.SystemClock#elapsedRealtime()}
+	 */
+	RateLimiter(int capacity, int perHour, int fingerprintCapacity, int fingerprintPerHour, long now) {
+		this.global = new TokenBucket(capacity, perHour, now);
+		this.fingerprintCapacity = fingerprintCapacity;
+		this.fingerprintPerHour = fingerprintPerHour;
+	}
+
+	/**
+	 * Takes a token for a report with the given fingerprint.
+	 *
+	 * @return The counts of suppressed reports to attach to the report or
+	 *         <tt>null</tt> if the report has to be suppressed
+	 */
+	synchronized Permit acquire(String fingerprint, long now) {
+		TokenBucket bucket = fingerprints.get(fingerprint);
+		if (bucket == null) {
+			bucket = new TokenBucket(fingerprintCapacity, fingerprintPerHour, now);
+			fingerprints.put(fingerprint, bucket);
+		}
+		if (!bucket.hasToken(now) || !global.hasToken(now)) {
+			global.suppressed++;
+			bucket.suppressed++;
+			return null;
+		}
+		bucket.take();
+		global.take();
+		Permit permit = new Permit(global.suppressed, bucket.suppressed);
+		global.suppressed = 0;
+		bucket.suppressed = 0;
+		return permit;
+	}
+
+	/**
+	 * Gives back the counts of a permit whose report didn't make it to the
+	 * server on its own, e.g. because it has been merged into a pending report.
+	 * They are attached to the next permit instead.
+	 */
+	synchronized void restore(String fingerprint, Permit permit) {
+		global.suppressed += permit.suppressed;
+		TokenBucket bucket = fingerprints.get(fingerprint);
+		if (bucket != null) bucket.suppressed += permit.suppressedSame;
+	}
+
+}
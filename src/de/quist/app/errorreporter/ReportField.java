@@ -0,0 +1,97 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+/**
+ * The fields which are sent to the server. The names are the ones used in
+ * the <tt>includeFields</tt> meta-data and in the request. The ids are used
+ * by the {@link BinaryReportFormat} and must never change; new fields get
+ * the next unused id.
+ */
+enum ReportField {
+
+	EX_STACK_TRACE(1, "exStackTrace"),
+	EX_STACK_TRACE_SIZE(21, "exStackTraceSize"),
+	EX_CLASS(2, "exClass"),
+	EX_DATE_TIME(3, "exDateTime"),
+	EX_MESSAGE(4, "exMessage"),
+	EX_THREAD_NAME(5, "exThreadName"),
+	EXTRA_MESSAGE(6, "extraMessage"),
+	EX_FINGERPRINT(7, "exFingerprint"),
+	EX_OCCURRENCES(8, "exOccurrences"),
+	EX_FIRST_SEEN(9, "exFirstSeen"),
+	EX_LAST_SEEN(10, "exLastSeen"),
+	EX_SUPPRESSED(19, "exSuppressed"),
+	EX_SUPPRESSED_SAME(20, "exSuppressedSame"),
+	EX_EVICTED(37, "exEvicted"),
+	SAMPLE_RATE(22, "sampleRate"),
+	BREADCRUMBS(23, "breadcrumbs"),
+	REPORT_TYPE(24, "reportType"),
+	STALL_DURATION(25, "stallDuration"),
+	STALL_SAMPLES(26, "stallSamples"),
+	EX_STACK_TRACE_FRAMES(27, "exStackTraceFrames"),
+	FRAME_DICTIONARY(28, "frameDictionary"),
+	APP_VERSION_CODE(11, "appVersionCode"),
+	APP_VERSION_NAME(12, "appVersionName"),
+	APP_PACKAGE_NAME(13, "appPackageName"),
+	DEV_AVAILABLE_MEMORY(14, "devAvailableMemory"),
+	DEV_TOTAL_MEMORY(15, "devTotalMemory"),
+	DEV_MODEL(16, "devModel"),
+	DEV_SDK(17, "devSdk"),
+	DEV_RELEASE_VERSION(18, "devReleaseVersion"),
+	DEV_BRAND(29, "devBrand"),
+	DEV_BUILD_FINGERPRINT(30, "devBuildFingerprint"),
+	DEV_SCREEN(31, "devScreen"),
+	DEV_UPTIME(36, "devUptime"),
+	HEAP_USED(32, "heapUsed"),
+	HEAP_MAX(33, "heapMax"),
+	NATIVE_HEAP_USED(34, "nativeHeapUsed"),
+	NATIVE_HEAP_SIZE(35, "nativeHeapSize");
+
+	final int id;
+	final String fieldName;
+
+	private ReportField(int id, String fieldName) {
+		this.id = id;
+		this.fieldName = fieldName;
+	}
+
+	/**
+	 * @return The field with the given name or <tt>null</tt> if there is none
+	 */
+	static ReportField forName(String fieldName) {
+		for (ReportField field : values()) {
+			if (field.fieldName.equals(fieldName)) return field;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The field with the given id or <tt>null</tt> if there is none
+	 */
+	static ReportField forId(int id) {
+		for (ReportField field : values()) {
+			if (field.id == id) return field;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,829 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of pending error reports which survives process deaths
+ * and reboots. The crashing process appends a report record, the
+ * {@link ExceptionReportService} appends an acknowledgement record once the
+ * report has been delivered (or discarded) and compacts the file when most of
+ * its content is acknowledged.
+ * <p>
+ * Every record is framed as <tt>[int length][int crc32][byte type][payload]</tt>,
+ * where length and checksum cover type and payload. Reports with the same
+ * fingerprint which are still pending are collapsed into one record: later
+ * occurrences only append a small occurrence record. Reports are only
+ * collapsed if they also agree in the {@link #COLLAPSE_FIELDS} and the
+ * pending report hasn't been claimed for upload yet.
+ * <p>
+ * A torn or corrupt record at the end of the file (e.g. because the process
+ * died while writing) is detected while reading and cut off.
+ * <p>
+ * Pending reports are kept within the limits of a {@link ReportRetention}.
+ * Dropped reports are acknowledged and counted by an eviction record, until
+ * the count has been reported to the server.
+ * <p>
+ * The journal is shared between the application process and the
+ * <tt>:exceptionReporter</tt> process, so every operation holds an exclusive
+ * file lock. Each instance remembers the content it has read and only scans
+ * records appended since; a generation counter in the lock file tells when
+ * another instance has replaced the journal. Only the position and the
+ * {@link #SUMMARY_FIELDS} of pending reports are kept in memory, the other
+ * fields are read back by {@link #readFields(Record)}.
+ */
+final class ReportJournal {
+
+	static final String FILE_NAME = "errorreporter.journal";
+
+	private static final int MAGIC = 0x41455231; // "AER1"
+	private static final int HEADER_SIZE = 4;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int MAXIMUM_RECORD_SIZE = 4 * 1024 * 1024;
+
+	private static final byte TYPE_REPORT = 1;
+	private static final byte TYPE_ACK = 2;
+	private static final byte TYPE_OCCURRENCE = 3;
+	private static final byte TYPE_EVICTION = 4;
+	private static final byte TYPE_CLAIM = 5;
+
+	/**
+	 * Fields which have to be equal for a report to be collapsed into a
+	 * pending one, as only the occurrence statistics of the pending report
+	 * are updated.
+	 */
+	private static final String[] COLLAPSE_FIELDS = {
+		ExceptionReportService.EXTRA_MANUAL_REPORT,
+		ExceptionReportService.EXTRA_MESSAGE,
+		ExceptionReportService.EXTRA_EXTRA_MESSAGE,
+		ExceptionReportService.EXTRA_REPORT_TYPE,
+		ExceptionReportService.FIELD_AWAITING_APPROVAL
+	};
+
+	/**
+	 * Fields which are kept in memory for every pending report, as they are
+	 * needed to collapse, select or list reports.
+	 */
+	private static final String[] SUMMARY_FIELDS = {
+		ExceptionReportService.EXTRA_EXCEPTION_CLASS,
+		ExceptionReportService.EXTRA_MANUAL_REPORT,
+		ExceptionReportService.EXTRA_MESSAGE,
+		ExceptionReportService.EXTRA_EXTRA_MESSAGE,
+		ExceptionReportService.EXTRA_REPORT_TYPE,
+		ExceptionReportService.FIELD_AWAITING_APPROVAL
+	};
+
+	/**
+	 * Compact the journal as soon as acknowledged records make up more than
+	 * this many bytes.
+	 */
+	private static final int COMPACTION_THRESHOLD = 64 * 1024;
+
+	/**
+	 * File locks are held per process, so threads of the same process have
+	 * to be serialized separately.
+	 */
+	private static final Object LOCK = new Object();
+
+	private static final long ID_SALT = new Random().nextInt(0xFFFF);
+	private static int idSequence = 0;
+
+	/**
+	 * A report as it has been written to the journal. All fields are read
+	 * with {@link ReportJournal#readFields(Record)}.
+	 */
+	static final class Record {
+
+		final long id;
+		final String fingerprint;
+		/** The {@link ReportJournal#SUMMARY_FIELDS} of the report */
+		private final Map<String, String> summary;
+		int occurrences;
+		long firstSeen;
+		long lastSeen;
+		/** Bytes the record occupies in the journal */
+		int size;
+		/** Whether the report is being uploaded, see {@link ReportJournal#claim(Collection)} */
+		boolean claimed;
+		/** Position of the report record in the journal */
+		private long offset;
+
+		Record(long id, String fingerprint, long time, Map<String, String> summary) {
+			this.id = id;
+			this.fingerprint = fingerprint;
+			this.summary = summary;
+			this.occurrences = 1;
+			this.firstSeen = time;
+			this.lastSeen = time;
+		}
+
+		/**
+		 * @return The value of one of the {@link ReportJournal#SUMMARY_FIELDS}
+		 */
+		String get(String name) {
+			return summary.get(name);
+		}
+
+		private Record copy() {
+			Record copy = new Record(id, fingerprint, firstSeen, summary);
+			copy.occurrences = occurrences;
+			copy.lastSeen = lastSeen;
+			copy.size = size;
+			copy.claimed = claimed;
+			copy.offset = offset;
+			return copy;
+		}
+
+	}
+
+	private final File file;
+	private final ReportRetention retention;
+
+	/*
+	 * Content of the journal up to the offset scanned. Later operations only
+	 * scan the records appended since, as long as the journal hasn't been
+	 * replaced in the meantime (see generation).
+	 */
+	private long generation = -1;
+	private long scanned;
+	private Map<Long, Record> reports;
+	private Map<Long, Integer> reportSizes;
+	/** Bytes occupied by acknowledgements and acknowledged reports */
+	private long acknowledgedBytes;
+	/** Number of evictions which haven't been reported yet */
+	private int evicted;
+
+	/**
+	 * Creates a journal which doesn't drop any reports by itself.
+	 */
+	ReportJournal(File directory) {
+		this(directory, ReportRetention.UNLIMITED);
+	}
+
+	ReportJournal(File directory, ReportRetention retention) {
+		this.file = new File(directory, FILE_NAME);
+		this.retention = retention;
+	}
+
+	/**
+	 * Generates an id which is unique across processes with a very high probability.
+	 */
+	static synchronized long newId() {
+		idSequence++;
+		return (System.currentTimeMillis() << 16) | ((ID_SALT + idSequence) & 0xFFFF);
+	}
+
+	/**
+	 * Cheap check (no locking, no parsing) whether the journal might contain pending reports.
+	 */
+	boolean mightHavePendingReports() {
+		return file.length() > HEADER_SIZE;
+	}
+
+	/**
+	 * Appends a report to the journal. If a pending report with the same
+	 * fingerprint exists, only its occurrence count and last-seen time are
+	 * updated.
+	 *
+	 * @param id The id of the report as created by {@link #newId()}
+	 * @param fingerprint The fingerprint of the report or <tt>null</tt> to never collapse it
+	 * @param time The time of the occurrence in milliseconds since epoch
+	 * @param fields The fields of the report. <tt>null</tt> values are skipped.
+	 *        The longest values are shortened in the journal if the report
+	 *        would exceed the maximum record size; the map isn't modified.
+	 * @return The id of the record which holds the report. This is either
+	 *         <tt>id</tt> or the id of the report it has been collapsed into.
+	 *         If the report has been dropped right away by the retention
+	 *         limits, the id won't be found in the journal.
+	 * @throws IOException If the report could not be written
+	 */
+	long append(long id, String fingerprint, long time, Map<String, String> fields) throws IOException {
+		synchronized (LOCK) {
+			RandomAccessFile lockFile = lock();
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					scan(raf, lockFile);
+					Record duplicate = null;
+					if (fingerprint != null) {
+						for (Record record : reports.values()) {
+							if (fingerprint.equals(record.fingerprint) && !record.claimed && hasSameCollapseFields(record, fields)) {
+								duplicate = record;
+								break;
+							}
+						}
+					}
+					List<Record> pending = new ArrayList<Record>(reports.values());
+					Record record = null;
+					byte[] report = null;
+					if (duplicate != null) {
+						ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+						DataOutputStream out = new DataOutputStream(bytes);
+						out.writeLong(duplicate.id);
+						out.writeLong(time);
+						raf.write(frame(TYPE_OCCURRENCE, bytes.toByteArray()));
+					} else {
+						record = new Record(id, fingerprint, time, new HashMap<String, String>());
+						report = frame(TYPE_REPORT, encodeReportWithin(record, fields));
+						record.size = report.length;
+						pending.add(record);
+					}
+					List<Record> evictions = retention.selectEvictions(pending, System.currentTimeMillis());
+					if (record != null && !evictions.contains(record)) raf.write(report);
+					evict(raf, evictions, record);
+					raf.getFD().sync();
+					return duplicate != null ? duplicate.id : id;
+				} finally {
+					raf.close();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Marks a report as done. It won't be returned by {@link #readPending()} anymore.
+	 */
+	void acknowledge(long id) throws IOException {
+		acknowledge(Collections.singleton(id));
+	}
+
+	/**
+	 * Marks several reports as done with a single write and sync.
+	 */
+	void acknowledge(Collection<Long> ids) throws IOException {
+		if (ids.isEmpty()) return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(ids.size() * (RECORD_HEADER_SIZE + 9));
+		for (Long id : ids) {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream(8);
+			new DataOutputStream(payload).writeLong(id);
+			bytes.write(frame(TYPE_ACK, payload.toByteArray()));
+		}
+		appendRecords(bytes.toByteArray());
+	}
+
+	/**
+	 * Reads all reports which have not been acknowledged yet in the order they
+	 * have been written. Truncates torn records at the end of the journal and
+	 * compacts the journal if it contains too many acknowledged records.
+	 */
+	List<Record> readPending() throws IOException {
+		if (!file.exists()) return Collections.emptyList();
+		synchronized (LOCK) {
+			RandomAccessFile lockFile = lock();
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				boolean compact;
+				try {
+					scan(raf, lockFile);
+					List<Record> evictions = retention.selectEvictions(new ArrayList<Record>(reports.values()), System.currentTimeMillis());
+					if (!evictions.isEmpty()) {
+						evict(raf, evictions, null);
+						raf.getFD().sync();
+						scan(raf, lockFile);
+					}
+					// Give the storage of evicted reports back right away
+					compact = !evictions.isEmpty() || acknowledgedBytes > COMPACTION_THRESHOLD || (reports.isEmpty() && acknowledgedBytes > 0);
+				} finally {
+					raf.close();
+				}
+				List<Record> result = new ArrayList<Record>(reports.size());
+				for (Record record : reports.values()) {
+					result.add(record.copy());
+				}
+				if (compact) rewrite(lockFile, result);
+				return result;
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Claims the given reports for upload: later occurrences won't be
+	 * collapsed into them anymore, as they would get lost when the reports
+	 * are acknowledged.
+	 *
+	 * @return The current state of those reports which are still pending
+	 */
+	List<Record> claim(Collection<Long> ids) throws IOException {
+		if (!file.exists()) return Collections.emptyList();
+		synchronized (LOCK) {
+			RandomAccessFile lockFile = lock();
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					scan(raf, lockFile);
+					List<Record> result = new ArrayList<Record>(ids.size());
+					ByteArrayOutputStream claims = new ByteArrayOutputStream();
+					for (Long id : ids) {
+						Record record = reports.get(id);
+						if (record == null) continue;
+						if (!record.claimed) {
+							// The cached record is updated by the next scan
+							ByteArrayOutputStream payload = new ByteArrayOutputStream(8);
+							new DataOutputStream(payload).writeLong(id);
+							claims.write(frame(TYPE_CLAIM, payload.toByteArray()));
+						}
+						Record copy = record.copy();
+						copy.claimed = true;
+						result.add(copy);
+					}
+					if (claims.size() > 0) {
+						raf.write(claims.toByteArray());
+						raf.getFD().sync();
+					}
+					return result;
+				} finally {
+					raf.close();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads all fields of a pending report back from the journal.
+	 *
+	 * @return The fields or <tt>null</tt> if the report isn't pending anymore
+	 */
+	Map<String, String> readFields(Record record) throws IOException {
+		if (!file.exists()) return null;
+		synchronized (LOCK) {
+			RandomAccessFile lockFile = lock();
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					scan(raf, lockFile);
+					// The cached position is up to date even if the journal has been compacted
+					Record current = reports.get(record.id);
+					if (current == null) return null;
+					byte[] payload = readPayload(raf, current);
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+					Map<String, String> fields = new LinkedHashMap<String, String>();
+					readReport(in, fields);
+					return fields;
+				} finally {
+					raf.close();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of reports dropped by the retention limits which
+	 * haven't been reported to the server yet.
+	 */
+	int readEvicted() throws IOException {
+		if (!file.exists()) return 0;
+		synchronized (LOCK) {
+			RandomAccessFile lockFile = lock();
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					scan(raf, lockFile);
+					return Math.max(0, evicted);
+				} finally {
+					raf.close();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Marks the given number of evictions as reported to the server.
+	 */
+	void acknowledgeEvicted(int count) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4);
+		new DataOutputStream(bytes).writeInt(-count);
+		appendRecords(frame(TYPE_EVICTION, bytes.toByteArray()));
+	}
+
+	/**
+	 * Acknowledges the dropped reports and counts them. Writes at the current
+	 * position of the file. The records are picked up by the next scan.
+	 *
+	 * @param unwritten A dropped report which hasn't been written or <tt>null</tt>
+	 */
+	private void evict(RandomAccessFile raf, List<Record> evictions, Record unwritten) throws IOException {
+		if (evictions.isEmpty()) return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(evictions.size() * 24);
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (Record record : evictions) {
+			if (record == unwritten) continue;
+			ByteArrayOutputStream id = new ByteArrayOutputStream(8);
+			new DataOutputStream(id).writeLong(record.id);
+			out.write(frame(TYPE_ACK, id.toByteArray()));
+		}
+		ByteArrayOutputStream count = new ByteArrayOutputStream(4);
+		new DataOutputStream(count).writeInt(evictions.size());
+		out.write(frame(TYPE_EVICTION, count.toByteArray()));
+		raf.write(bytes.toByteArray());
+	}
+
+	/**
+	 * Acquires the inter-process lock of the journal. Closing the returned
+	 * file releases the lock. A separate lock file is used, so the journal
+	 * itself can be replaced atomically during compaction.
+	 */
+	private RandomAccessFile lock() throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists()) parent.mkdirs();
+		RandomAccessFile lockFile = new RandomAccessFile(file.getPath() + ".lock", "rw");
+		try {
+			lockFile.getChannel().lock();
+		} catch (IOException e) {
+			lockFile.close();
+			throw e;
+		}
+		return lockFile;
+	}
+
+	/**
+	 * The generation of the journal is stored in the lock file and
+	 * incremented whenever the journal is replaced or reset, so cached
+	 * content of other instances and processes becomes invalid.
+	 */
+	private static long readGeneration(RandomAccessFile lockFile) throws IOException {
+		if (lockFile.length() < 8) return 0;
+		lockFile.seek(0);
+		return lockFile.readLong();
+	}
+
+	private static void incrementGeneration(RandomAccessFile lockFile) throws IOException {
+		long generation = readGeneration(lockFile);
+		lockFile.seek(0);
+		lockFile.writeLong(generation + 1);
+	}
+
+	/**
+	 * Appends framed records after the last intact record.
+	 */
+	private void appendRecords(byte[] records) throws IOException {
+		synchronized (LOCK) {
+			RandomAccessFile lockFile = lock();
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					scan(raf, lockFile);
+					raf.write(records);
+					raf.getFD().sync();
+				} finally {
+					raf.close();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	private static Map<String, String> summarize(Map<String, String> fields) {
+		Map<String, String> summary = new HashMap<String, String>();
+		for (String name : SUMMARY_FIELDS) {
+			String value = fields.get(name);
+			if (value != null) summary.put(name, value);
+		}
+		return summary;
+	}
+
+	private static boolean isSummaryField(String name) {
+		for (String summaryField : SUMMARY_FIELDS) {
+			if (summaryField.equals(name)) return true;
+		}
+		return false;
+	}
+
+	private static boolean hasSameCollapseFields(Record record, Map<String, String> fields) {
+		for (String name : COLLAPSE_FIELDS) {
+			String value = fields.get(name);
+			if (value == null ? record.get(name) != null : !value.equals(record.get(name))) return false;
+		}
+		return true;
+	}
+
+	private static byte[] encodeReport(Record record, Map<String, String> fields) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeReportHeader(out, record);
+		int count = 0;
+		for (String value : fields.values()) {
+			if (value != null) count++;
+		}
+		out.writeInt(count);
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			if (field.getValue() == null) continue;
+			out.writeUTF(field.getKey());
+			byte[] value = field.getValue().getBytes("UTF-8");
+			out.writeInt(value.length);
+			out.write(value);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes id, fingerprint and occurrence statistics, which precede the
+	 * fields of a report.
+	 */
+	private static void writeReportHeader(DataOutputStream out, Record record) throws IOException {
+		out.writeLong(record.id);
+		out.writeUTF(record.fingerprint != null ? record.fingerprint : "");
+		out.writeInt(record.occurrences);
+		out.writeLong(record.firstSeen);
+		out.writeLong(record.lastSeen);
+	}
+
+	/**
+	 * Encodes a new report and fills in its summary, halving its longest
+	 * value until the record fits into {@link #MAXIMUM_RECORD_SIZE}. A larger
+	 * record would be taken for a torn write and cut off together with
+	 * everything after it. Values are shortened in a copy, the given fields
+	 * stay untouched.
+	 */
+	private static byte[] encodeReportWithin(Record record, Map<String, String> fields) throws IOException {
+		Map<String, String> stored = fields;
+		byte[] payload = encodeReport(record, stored);
+		while (payload.length + 1 > MAXIMUM_RECORD_SIZE) {
+			if (stored == fields) stored = new LinkedHashMap<String, String>(fields);
+			Map.Entry<String, String> longest = null;
+			for (Map.Entry<String, String> field : stored.entrySet()) {
+				if (field.getValue() != null && (longest == null || field.getValue().length() > longest.getValue().length())) longest = field;
+			}
+			if (longest == null || longest.getValue().length() < 2) throw new IOException("Report exceeds the maximum record size");
+			String value = longest.getValue();
+			int end = value.length() / 2;
+			if (Character.isHighSurrogate(value.charAt(end - 1))) end--;
+			longest.setValue(value.substring(0, end));
+			payload = encodeReport(record, stored);
+		}
+		record.summary.putAll(summarize(stored));
+		return payload;
+	}
+
+	private static byte[] frame(byte type, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload);
+		int length = payload.length + 1;
+		byte[] record = new byte[RECORD_HEADER_SIZE + length];
+		writeInt(record, 0, length);
+		writeInt(record, 4, (int) crc.getValue());
+		record[RECORD_HEADER_SIZE] = type;
+		System.arraycopy(payload, 0, record, RECORD_HEADER_SIZE + 1, payload.length);
+		return record;
+	}
+
+	/**
+	 * Brings the cached content up to date with the journal. Only records
+	 * written since the last scan are read, unless the journal has been
+	 * replaced. Anything after the last intact record is truncated. When this
+	 * method returns, the file pointer is positioned at the end of the last
+	 * intact record.
+	 */
+	private void scan(RandomAccessFile raf, RandomAccessFile lockFile) throws IOException {
+		long length = raf.length();
+		long currentGeneration = readGeneration(lockFile);
+		if (currentGeneration != generation || length < scanned) {
+			generation = currentGeneration;
+			scanned = 0;
+			reports = new LinkedHashMap<Long, Record>();
+			reportSizes = new HashMap<Long, Integer>();
+			acknowledgedBytes = 0;
+			evicted = 0;
+		}
+		raf.seek(0);
+		if (length < HEADER_SIZE || raf.readInt() != MAGIC) {
+			raf.setLength(0);
+			raf.seek(0);
+			raf.writeInt(MAGIC);
+			incrementGeneration(lockFile);
+			generation = currentGeneration + 1;
+			scanned = HEADER_SIZE;
+			reports.clear();
+			reportSizes.clear();
+			acknowledgedBytes = 0;
+			evicted = 0;
+			return;
+		}
+		if (scanned == 0) scanned = HEADER_SIZE;
+		long offset = scanned;
+		CRC32 crc = new CRC32();
+		while (offset + RECORD_HEADER_SIZE <= length) {
+			raf.seek(offset);
+			int recordLength = raf.readInt();
+			int checksum = raf.readInt();
+			if (recordLength < 1 || recordLength > MAXIMUM_RECORD_SIZE || offset + RECORD_HEADER_SIZE + recordLength > length) break;
+			byte[] data = new byte[recordLength];
+			raf.readFully(data);
+			crc.reset();
+			crc.update(data);
+			if ((int) crc.getValue() != checksum) break;
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 1, data.length - 1));
+				if (data[0] == TYPE_REPORT) {
+					Record record = readReport(in, null);
+					record.size = RECORD_HEADER_SIZE + recordLength;
+					record.offset = offset;
+					reports.put(record.id, record);
+					reportSizes.put(record.id, record.size);
+				} else if (data[0] == TYPE_ACK) {
+					long id = in.readLong();
+					reports.remove(id);
+					Integer reportSize = reportSizes.remove(id);
+					if (reportSize != null) acknowledgedBytes += reportSize;
+					acknowledgedBytes += RECORD_HEADER_SIZE + recordLength;
+				} else if (data[0] == TYPE_OCCURRENCE) {
+					long id = in.readLong();
+					long time = in.readLong();
+					// Occurrences are folded into their report on compaction
+					acknowledgedBytes += RECORD_HEADER_SIZE + recordLength;
+					Record record = reports.get(id);
+					if (record != null) {
+						record.occurrences++;
+						record.firstSeen = Math.min(record.firstSeen, time);
+						record.lastSeen = Math.max(record.lastSeen, time);
+					}
+				} else if (data[0] == TYPE_CLAIM) {
+					long id = in.readLong();
+					Record record = reports.get(id);
+					if (record != null && !record.claimed) {
+						// Given back together with the report
+						record.claimed = true;
+						reportSizes.put(id, reportSizes.get(id) + RECORD_HEADER_SIZE + recordLength);
+					} else {
+						acknowledgedBytes += RECORD_HEADER_SIZE + recordLength;
+					}
+				} else if (data[0] == TYPE_EVICTION) {
+					// Counts are summed up on compaction
+					evicted += in.readInt();
+					acknowledgedBytes += RECORD_HEADER_SIZE + recordLength;
+				}
+			} catch (IOException e) {
+				// Checksum matched, but the payload is malformed. Skip it.
+			}
+			offset += RECORD_HEADER_SIZE + recordLength;
+		}
+		if (offset < length) {
+			// Torn write: cut off everything after the last intact record
+			raf.setLength(offset);
+		}
+		raf.seek(offset);
+		scanned = offset;
+	}
+
+	/**
+	 * Decodes the payload of a report record. Only the summary fields are
+	 * decoded, unless the fields are requested.
+	 *
+	 * @param fields Receives all fields of the report or <tt>null</tt>
+	 */
+	private static Record readReport(DataInputStream in, Map<String, String> fields) throws IOException {
+		Record record = readReportHeader(in);
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String name = in.readUTF();
+			int length = in.readInt();
+			if (fields == null && !isSummaryField(name)) {
+				if (in.skipBytes(length) != length) throw new EOFException();
+				continue;
+			}
+			byte[] value = new byte[length];
+			in.readFully(value);
+			String string = new String(value, "UTF-8");
+			if (fields != null) fields.put(name, string);
+			if (isSummaryField(name)) record.summary.put(name, string);
+		}
+		return record;
+	}
+
+	private static Record readReportHeader(DataInputStream in) throws IOException {
+		long id = in.readLong();
+		String fingerprint = in.readUTF();
+		int occurrences = in.readInt();
+		long firstSeen = in.readLong();
+		long lastSeen = in.readLong();
+		Record record = new Record(id, fingerprint.length() > 0 ? fingerprint : null, firstSeen, new HashMap<String, String>());
+		record.occurrences = occurrences;
+		record.lastSeen = lastSeen;
+		return record;
+	}
+
+	/**
+	 * Reads the payload of a report record at its cached position.
+	 */
+	private static byte[] readPayload(RandomAccessFile raf, Record record) throws IOException {
+		raf.seek(record.offset);
+		int recordLength = raf.readInt();
+		int checksum = raf.readInt();
+		byte[] data = new byte[recordLength];
+		raf.readFully(data);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if ((int) crc.getValue() != checksum || data[0] != TYPE_REPORT) throw new IOException("Report " + record.id + " has moved");
+		byte[] payload = new byte[data.length - 1];
+		System.arraycopy(data, 1, payload, 0, payload.length);
+		return payload;
+	}
+
+	/**
+	 * Replaces the content of the journal with the given reports and the
+	 * count of unreported evictions. The new content is written to a
+	 * temporary file which is then renamed, so a crash during compaction
+	 * leaves the original journal intact.
+	 */
+	private void rewrite(RandomAccessFile lockFile, List<Record> records) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			writeCompacted(in, tmp, records);
+		} finally {
+			in.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not replace " + file);
+		}
+		incrementGeneration(lockFile);
+	}
+
+	private void writeCompacted(RandomAccessFile in, File tmp, List<Record> records) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		try {
+			out.setLength(0);
+			out.writeInt(MAGIC);
+			for (Record record : records) {
+				// Reports are copied one at a time with their current occurrence statistics
+				byte[] payload = readPayload(in, record);
+				DataInputStream header = new DataInputStream(new ByteArrayInputStream(payload));
+				readReportHeader(header);
+				int headerSize = payload.length - header.available();
+				ByteArrayOutputStream report = new ByteArrayOutputStream(payload.length);
+				writeReportHeader(new DataOutputStream(report), record);
+				report.write(payload, headerSize, payload.length - headerSize);
+				out.write(frame(TYPE_REPORT, report.toByteArray()));
+				if (record.claimed) {
+					ByteArrayOutputStream id = new ByteArrayOutputStream(8);
+					new DataOutputStream(id).writeLong(record.id);
+					out.write(frame(TYPE_CLAIM, id.toByteArray()));
+				}
+			}
+			if (evicted > 0) {
+				ByteArrayOutputStream count = new ByteArrayOutputStream(4);
+				new DataOutputStream(count).writeInt(evicted);
+				out.write(frame(TYPE_EVICTION, count.toByteArray()));
+			}
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+}
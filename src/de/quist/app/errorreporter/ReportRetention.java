@@ -0,0 +1,135 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits the reports pending in the {@link ReportJournal}, so reports which
+ * pile up while the device is offline can neither fill the storage nor the
+ * memory of the reporting process. Reports older than the maximum age are
+ * always dropped. Beyond the maximum count or size, reports are dropped in
+ * this order, oldest first within each group: older reports of a crash (same
+ * fingerprint) with a newer pending report, handled exceptions and stalls,
+ * and finally the unique crashes.
+ */
+final class ReportRetention {
+
+	static final ReportRetention UNLIMITED = new ReportRetention(0, 0, 0);
+
+	private static final int RANK_DUPLICATE = 0;
+	private static final int RANK_LOW_PRIORITY = 1;
+	private static final int RANK_CRASH = 2;
+
+	private final int maximumCount;
+	private final long maximumBytes;
+	private final long maximumAge;
+
+	/**
+	 * @param maximumCount Maximum number of pending reports. <tt>0</tt> disables the limit
+	 * @param maximumBytes Maximum size of the pending reports in the journal. <tt>0</tt> disables the limit
+	 * @param maximumAge Maximum time in ms since a report has last been seen. <tt>0</tt> disables the limit
+	 */
+	ReportRetention(int maximumCount, long maximumBytes, long maximumAge) {
+		this.maximumCount = maximumCount;
+		this.maximumBytes = maximumBytes;
+		this.maximumAge = maximumAge;
+	}
+
+	/**
+	 * Selects the reports to drop.
+	 *
+	 * @param pending The pending reports with their {@link ReportJournal.Record#size}
+	 * @param now The current time in milliseconds since epoch
+	 * @return The reports to drop. Empty if all limits are met.
+	 */
+	List<ReportJournal.Record> selectEvictions(Collection<ReportJournal.Record> pending, long now) {
+		List<ReportJournal.Record> evictions = new ArrayList<ReportJournal.Record>();
+		List<ReportJournal.Record> candidates = new ArrayList<ReportJournal.Record>(pending.size());
+		long bytes = 0;
+		for (ReportJournal.Record record : pending) {
+			if (maximumAge > 0 && now - record.lastSeen > maximumAge) {
+				evictions.add(record);
+			} else {
+				candidates.add(record);
+				bytes += record.size;
+			}
+		}
+		int count = candidates.size();
+		if (!isExceeded(count, bytes)) return evictions;
+
+		Map<String, ReportJournal.Record> newest = new HashMap<String, ReportJournal.Record>();
+		for (ReportJournal.Record record : candidates) {
+			ReportJournal.Record other = newest.get(getKey(record));
+			if (other == null || record.lastSeen >= other.lastSeen) newest.put(getKey(record), record);
+		}
+		final Map<Long, Integer> ranks = new HashMap<Long, Integer>();
+		for (ReportJournal.Record record : candidates) {
+			int rank;
+			if (newest.get(getKey(record)) != record || (maximumBytes > 0 && record.size > maximumBytes)) {
+				// Too large reports would otherwise push out all others
+				rank = RANK_DUPLICATE;
+			} else if (Boolean.parseBoolean(record.get(ExceptionReportService.EXTRA_MANUAL_REPORT))
+					|| ExceptionReportService.REPORT_TYPE_STALL.equals(record.get(ExceptionReportService.EXTRA_REPORT_TYPE))) {
+				rank = RANK_LOW_PRIORITY;
+			} else {
+				rank = RANK_CRASH;
+			}
+			ranks.put(record.id, rank);
+		}
+		Collections.sort(candidates, new Comparator<ReportJournal.Record>() {
+			@Override
+			public int compare(ReportJournal.Record a, ReportJournal.Record b) {
+				int rankA = ranks.get(a.id);
+				int rankB = ranks.get(b.id);
+				if (rankA != rankB) return rankA < rankB ? -1 : 1;
+				return a.lastSeen < b.lastSeen ? -1 : (a.lastSeen == b.lastSeen ? 0 : 1);
+			}
+		});
+		for (ReportJournal.Record record : candidates) {
+			if (!isExceeded(count, bytes)) break;
+			evictions.add(record);
+			count--;
+			bytes -= record.size;
+		}
+		return evictions;
+	}
+
+	private boolean isExceeded(int count, long bytes) {
+		return (maximumCount > 0 && count > maximumCount) || (maximumBytes > 0 && bytes > maximumBytes);
+	}
+
+	/**
+	 * Reports with the same key are duplicates of each other. Reports
+	 * without a fingerprint are never duplicates.
+	 */
+	private static String getKey(ReportJournal.Record record) {
+		return record.fingerprint != null ? record.fingerprint : String.valueOf(record.id);
+	}
+
+}
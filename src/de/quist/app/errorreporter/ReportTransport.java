@@ -0,0 +1,273 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * HTTP transport of the {@link ExceptionReportService}. It lives as long as
+ * the service and keeps its connections alive, so consecutive reports to the
+ * same server don't need a new connection (and TLS handshake) each. Request
+ * bodies can be gzip compressed. Responses are always consumed completely, so
+ * their connections can be reused.
+ */
+final class ReportTransport {
+
+	private static final int CONNECTION_TIMEOUT = 20 * 1000;
+	private static final int SOCKET_TIMEOUT = 30 * 1000;
+
+	/**
+	 * Response bodies larger than this are discarded instead of being read into memory.
+	 */
+	private static final int MAXIMUM_RESPONSE_BODY = 64 * 1024;
+
+	/**
+	 * The status and body of a response.
+	 */
+	static final class Response {
+
+		final int statusCode;
+		final HttpResponse httpResponse;
+		final String body;
+
+		private Response(HttpResponse httpResponse, String body) {
+			this.statusCode = httpResponse.getStatusLine().getStatusCode();
+			this.httpResponse = httpResponse;
+			this.body = body;
+		}
+
+		/**
+		 * @return The delay in ms requested by the <tt>Retry-After</tt>
+		 *         header (seconds or an HTTP date) or -1 if there is none
+		 */
+		long getRetryAfter() {
+			Header header = httpResponse.getFirstHeader("Retry-After");
+			if (header == null || header.getValue() == null) return -1;
+			String value = header.getValue().trim();
+			try {
+				return Math.max(0, Long.parseLong(value) * 1000);
+			} catch (NumberFormatException e) {
+				// Not in seconds, so it has to be a date
+			}
+			try {
+				return Math.max(0, DateUtils.parseDate(value).getTime() - System.currentTimeMillis());
+			} catch (DateParseException e) {
+				return -1;
+			}
+		}
+
+	}
+
+	private final DefaultHttpClient httpClient;
+	private final boolean gzip;
+
+	/**
+	 * @param maximumConnections Maximum number of parallel requests
+	 */
+	ReportTransport(boolean gzip, int maximumConnections) {
+		this.gzip = gzip;
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		ConnManagerParams.setMaxTotalConnections(params, maximumConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maximumConnections));
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(params, schemes);
+		this.httpClient = new DefaultHttpClient(connectionManager, params);
+	}
+
+	/**
+	 * Posts the given entity and reads the complete response.
+	 *
+	 * @throws IOException If the request failed. The connection is released in any case.
+	 */
+	Response post(String url, HttpEntity entity) throws IOException {
+		HttpPost post = new HttpPost(url);
+		if (gzip) {
+			post.setEntity(new CountingEntity(new GzipEntity(entity)));
+			post.setHeader("Content-Encoding", "gzip");
+		} else {
+			post.setEntity(new CountingEntity(entity));
+		}
+		long start = System.nanoTime();
+		try {
+			HttpResponse httpResponse = httpClient.execute(post);
+			return new Response(httpResponse, consume(httpResponse.getEntity()));
+		} catch (IOException e) {
+			post.abort();
+			throw e;
+		} catch (RuntimeException e) {
+			post.abort();
+			throw e;
+		} finally {
+			Metrics.get().recordUploadLatency(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Reads the entity completely so the connection goes back to the pool.
+	 *
+	 * @return The body or <tt>null</tt> if there is none or it is too large
+	 */
+	private static String consume(HttpEntity entity) throws IOException {
+		if (entity == null) return null;
+		InputStream in = entity.getContent();
+		if (in == null) return null;
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				if (body != null && body.size() + read <= MAXIMUM_RESPONSE_BODY) {
+					body.write(buffer, 0, read);
+				} else {
+					body = null;
+				}
+			}
+			return body != null ? body.toString(HTTP.UTF_8) : null;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Closes all pooled connections.
+	 */
+	void shutdown() {
+		httpClient.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * Counts the bytes of the body written to the connection.
+	 */
+	private static final class CountingEntity extends HttpEntityWrapper {
+
+		CountingEntity(HttpEntity entity) {
+			super(entity);
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			super.writeTo(new FilterOutputStream(out) {
+
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					Metrics.get().add(ReporterMetrics.Counter.BYTES_SENT, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					Metrics.get().add(ReporterMetrics.Counter.BYTES_SENT, len);
+				}
+
+			});
+		}
+
+	}
+
+	/**
+	 * Compresses the wrapped entity while it is written. The length isn't
+	 * known in advance, so the body is sent with chunked transfer encoding.
+	 */
+	private static final class GzipEntity extends AbstractHttpEntity {
+
+		private final HttpEntity entity;
+
+		GzipEntity(HttpEntity entity) {
+			this.entity = entity;
+			setContentType(entity.getContentType());
+			setChunked(true);
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return entity.isRepeatable();
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		/**
+		 * Compresses the wrapped entity into memory. The client only uses
+		 * {@link #writeTo(OutputStream)}, which compresses while sending.
+		 */
+		@Override
+		public InputStream getContent() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+			writeTo(bytes);
+			return new ByteArrayInputStream(bytes.toByteArray());
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			entity.writeTo(gzip);
+			gzip.finish();
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return entity.isStreaming();
+		}
+
+	}
+
+}
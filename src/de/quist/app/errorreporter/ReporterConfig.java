@@ -0,0 +1,498 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * The configuration of the error reporter as defined by the meta-data in the
+ * <tt>AndroidManifest.xml</tt>. It is parsed and validated once per process
+ * and shared by all components.
+ */
+final class ReporterConfig {
+
+	private static final String TAG = ReporterConfig.class.getSimpleName();
+	private static final String PREFIX = ReporterConfig.class.getPackage().getName();
+
+	static final String META_DATA_TARGET_URL = PREFIX.concat(".targetUrl");
+	static final String META_DATA_MAXIMUM_RETRY_COUNT = PREFIX.concat(".maximumRetryCount");
+	static final String META_DATA_MAXIMUM_PENDING_REPORTS = PREFIX.concat(".maximumPendingReports");
+	static final String META_DATA_MAXIMUM_PENDING_BYTES = PREFIX.concat(".maximumPendingBytes");
+	static final String META_DATA_MAXIMUM_REPORT_AGE = PREFIX.concat(".maximumReportAge");
+	static final String META_DATA_MAXIMUM_BACKOFF_EXPONENT = PREFIX.concat(".maximumBackoffExponent");
+	static final String META_DATA_REPORT_ON_FROYO = PREFIX.concat(".reportOnFroyo");
+	static final String META_DATA_FIELDS_TO_SEND = PREFIX.concat(".includeFields");
+	static final String META_DATA_BATCH_SIZE = PREFIX.concat(".batchSize");
+	static final String META_DATA_BATCH_MAXIMUM_BYTES = PREFIX.concat(".batchMaximumBytes");
+	static final String META_DATA_GZIP_REQUESTS = PREFIX.concat(".gzipRequests");
+	static final String META_DATA_REPORT_FORMAT = PREFIX.concat(".reportFormat");
+	static final String META_DATA_RATE_LIMIT_CAPACITY = PREFIX.concat(".rateLimitCapacity");
+	static final String META_DATA_RATE_LIMIT_PER_HOUR = PREFIX.concat(".rateLimitPerHour");
+	static final String META_DATA_FINGERPRINT_RATE_LIMIT_CAPACITY = PREFIX.concat(".fingerprintRateLimitCapacity");
+	static final String META_DATA_FINGERPRINT_RATE_LIMIT_PER_HOUR = PREFIX.concat(".fingerprintRateLimitPerHour");
+	static final String META_DATA_MANUAL_SAMPLE_RATES = PREFIX.concat(".manualSampleRates");
+	static final String META_DATA_AUTOMATIC_SAMPLE_RATES = PREFIX.concat(".automaticSampleRates");
+	static final String META_DATA_UPLOAD_CONCURRENCY = PREFIX.concat(".uploadConcurrency");
+	static final String META_DATA_UPLOAD_QUEUE_SIZE = PREFIX.concat(".uploadQueueSize");
+	static final String META_DATA_BREADCRUMBS = PREFIX.concat(".breadcrumbs");
+	static final String META_DATA_HEALTH_REPORT_INTERVAL = PREFIX.concat(".healthReportInterval");
+	static final String META_DATA_FRAME_DICTIONARY = PREFIX.concat(".frameDictionary");
+	static final String META_DATA_STALL_TIMEOUT = PREFIX.concat(".stallTimeout");
+	static final String META_DATA_STALL_SAMPLES = PREFIX.concat(".stallSamples");
+	static final String META_DATA_ASYNC_QUEUE_SIZE = PREFIX.concat(".asyncQueueSize");
+	static final String META_DATA_ASYNC_OVERFLOW_POLICY = PREFIX.concat(".asyncOverflowPolicy");
+	static final String META_DATA_DEFER_BULK_UPLOADS = PREFIX.concat(".deferBulkUploads");
+	static final String META_DATA_PASS_REPORT_IDS = PREFIX.concat(".passReportIds");
+	static final String META_DATA_STACK_TRACE_MAXIMUM_FRAMES = PREFIX.concat(".stackTraceMaximumFrames");
+	static final String META_DATA_STACK_TRACE_MAXIMUM_CAUSES = PREFIX.concat(".stackTraceMaximumCauses");
+	static final String META_DATA_STACK_TRACE_MAXIMUM_BYTES = PREFIX.concat(".stackTraceMaximumBytes");
+
+	static final String META_DATA_NOTIFICATION_ICON = PREFIX.concat(".notificationIcon");
+	static final String META_DATA_NOTIFICATION_TITLE = PREFIX.concat(".notificationTitle");
+	static final String META_DATA_NOTIFICATION_TEXT = PREFIX.concat(".notificationText");
+	static final String META_DATA_NOTIFICATION_TICKER_TEXT = PREFIX.concat(".notificationTickerText");
+
+	static final String META_DATA_DIALOG_TITLE = PREFIX.concat(".dialogTitle");
+	static final String META_DATA_DIALOG_TEXT = PREFIX.concat(".dialogText");
+	static final String META_DATA_DIALOG_ICON = PREFIX.concat(".dialogIcon");
+	static final String META_DATA_DIALOG_MESSAGE_HINT = PREFIX.concat(".dialogMessageHint");
+	static final String META_DATA_DIALOG_SEND_BUTTON = PREFIX.concat(".dialogSendButton");
+	static final String META_DATA_DIALOG_CANCEL_BUTTON = PREFIX.concat(".dialogCancelButton");
+
+	/**
+	 * The default maximum backoff exponent.
+	 */
+	static final int DEFAULT_MAXIMUM_BACKOFF_EXPONENT = 12;
+
+	/**
+	 * The default maximum number of tries to send a report. This value results in a retry
+	 * time of about 8 hours with an unchanged retry count.
+	 */
+	static final int DEFAULT_MAXIMUM_RETRY_COUNT = DEFAULT_MAXIMUM_BACKOFF_EXPONENT + 5;
+
+	/**
+	 * The default maximum number of reports waiting to be sent.
+	 */
+	static final int DEFAULT_MAXIMUM_PENDING_REPORTS = 100;
+
+	/**
+	 * The default maximum size in bytes of the reports waiting to be sent.
+	 */
+	static final int DEFAULT_MAXIMUM_PENDING_BYTES = 1024 * 1024;
+
+	/**
+	 * The default maximum age in days of a report waiting to be sent.
+	 */
+	static final int DEFAULT_MAXIMUM_REPORT_AGE = 30;
+
+	/**
+	 * The default value whether to report on Android 2.2 and above.
+	 */
+	static final boolean DEFAULT_REPORT_ON_FROYO = false;
+
+	static final String DEFAULT_FIELDS_TO_SEND = "all";
+
+	/**
+	 * The default maximum number of reports sent in one request. A value of 1
+	 * disables batching.
+	 */
+	static final int DEFAULT_BATCH_SIZE = 1;
+
+	/**
+	 * The default maximum size in bytes of the encoded reports sent in one
+	 * request, before compression.
+	 */
+	static final int DEFAULT_BATCH_MAXIMUM_BYTES = 256 * 1024;
+
+	/**
+	 * The default value whether request bodies are gzip compressed.
+	 */
+	static final boolean DEFAULT_GZIP_REQUESTS = false;
+
+	static final String REPORT_FORMAT_FORM = "form";
+	static final String REPORT_FORMAT_BINARY = "binary";
+
+	/**
+	 * The default format of request bodies.
+	 */
+	static final String DEFAULT_REPORT_FORMAT = REPORT_FORMAT_FORM;
+
+	/**
+	 * The default maximum number of reports created in a burst. 0 disables
+	 * the limit, so rate limiting has to be enabled explicitly.
+	 */
+	static final int DEFAULT_RATE_LIMIT_CAPACITY = 0;
+
+	/**
+	 * The default number of reports per hour once a burst is used up.
+	 */
+	static final int DEFAULT_RATE_LIMIT_PER_HOUR = 30;
+
+	/**
+	 * The default maximum number of reports of the same crash created in a
+	 * burst. 0 disables the limit, so it has to be enabled explicitly.
+	 */
+	static final int DEFAULT_FINGERPRINT_RATE_LIMIT_CAPACITY = 0;
+
+	/**
+	 * The default number of reports of the same crash per hour once a burst is used up.
+	 */
+	static final int DEFAULT_FINGERPRINT_RATE_LIMIT_PER_HOUR = 6;
+
+	/**
+	 * The default number of reports uploaded in parallel. A value of 1 sends
+	 * them one by one.
+	 */
+	static final int DEFAULT_UPLOAD_CONCURRENCY = 1;
+
+	/**
+	 * The default number of uploads waiting for a free worker.
+	 */
+	static final int DEFAULT_UPLOAD_QUEUE_SIZE = 16;
+
+	/**
+	 * The default number of breadcrumbs attached to a report. 0 disables
+	 * breadcrumbs.
+	 */
+	static final int DEFAULT_BREADCRUMBS = 64;
+
+	/**
+	 * The default number of hours between two health reports. 0 disables
+	 * health reports.
+	 */
+	static final int DEFAULT_HEALTH_REPORT_INTERVAL = 0;
+
+	/**
+	 * The default value whether stack frames already known to the server
+	 * are sent as references into a frame dictionary.
+	 */
+	static final boolean DEFAULT_FRAME_DICTIONARY = false;
+
+	/**
+	 * The default time in ms the main thread may be stalled before it is
+	 * reported. 0 disables the watchdog.
+	 */
+	static final int DEFAULT_STALL_TIMEOUT = 0;
+
+	/**
+	 * The default number of stack samples of the main thread taken during a
+	 * stall.
+	 */
+	static final int DEFAULT_STALL_SAMPLES = 5;
+
+	/**
+	 * The default number of reports passed to
+	 * {@link ExceptionReporter#reportExceptionAsync(Thread, Throwable)}
+	 * which may wait to be processed.
+	 */
+	static final int DEFAULT_ASYNC_QUEUE_SIZE = 32;
+
+	static final String ASYNC_OVERFLOW_DROP_NEWEST = "dropNewest";
+	static final String ASYNC_OVERFLOW_DROP_OLDEST = "dropOldest";
+	static final String ASYNC_OVERFLOW_CALLER_RUNS = "callerRuns";
+
+	/**
+	 * The default handling of asynchronous reports while the queue is full.
+	 */
+	static final String DEFAULT_ASYNC_OVERFLOW_POLICY = ASYNC_OVERFLOW_DROP_NEWEST;
+
+	/**
+	 * The default value whether the reports of the journal are only uploaded
+	 * on Wi-Fi or while charging.
+	 */
+	static final boolean DEFAULT_DEFER_BULK_UPLOADS = false;
+
+	/**
+	 * The default value whether only report ids are passed to the service
+	 * and the activity instead of the complete report.
+	 */
+	static final boolean DEFAULT_PASS_REPORT_IDS = false;
+
+	/**
+	 * The default maximum number of frames per throwable in a stack trace. 0 disables the limit.
+	 */
+	static final int DEFAULT_STACK_TRACE_MAXIMUM_FRAMES = 128;
+
+	/**
+	 * The default maximum depth of the cause chain in a stack trace. 0 disables the limit.
+	 */
+	static final int DEFAULT_STACK_TRACE_MAXIMUM_CAUSES = 16;
+
+	/**
+	 * The default maximum size of a stack trace in UTF-8 bytes. 0 disables the limit.
+	 */
+	static final int DEFAULT_STACK_TRACE_MAXIMUM_BYTES = 64 * 1024;
+
+	static final int DEFAULT_NOTIFICATION_ICON = android.R.drawable.stat_notify_error;
+	static final CharSequence DEFAULT_NOTIFICATION_TITLE = "^1 crashed";
+	static final CharSequence DEFAULT_NOTIFICATION_TEXT = "Click here to help fixing the issue";
+	static final CharSequence DEFAULT_NOTIFICATION_TICKER_TEXT = "";
+
+	static final CharSequence DEFAULT_DIALOG_TITLE = "^1 crashed";
+	static final CharSequence DEFAULT_DIALOG_TEXT = "^1 crashed because of an unexpected error. Please help fixing the error by sending an error report to the developer.";
+	static final int DEFAULT_DIALOG_ICON = android.R.drawable.ic_dialog_alert;
+	static final int DEFAULT_POSITIVE_BUTTON_TEXT = android.R.string.ok;
+	static final int DEFAULT_NEGATIVE_BUTTON_TEXT = android.R.string.cancel;
+
+	private static ReporterConfig instance;
+
+	/**
+	 * The target URL or <tt>null</tt> if it is undefined.
+	 */
+	final String targetUrl;
+	final int maximumRetryCount;
+	final ReportRetention retention;
+	final int maximumBackoffExponent;
+	final boolean reportOnFroyo;
+	final Set<ReportField> fieldsToSend;
+	final int batchSize;
+	final int batchMaximumBytes;
+	final boolean gzipRequests;
+	/** Whether reports are sent in the {@link BinaryReportFormat}. */
+	final boolean binaryFormat;
+	final int rateLimitCapacity;
+	final int rateLimitPerHour;
+	final int fingerprintRateLimitCapacity;
+	final int fingerprintRateLimitPerHour;
+	final StackTraceCompactor stackTraceCompactor;
+	final boolean passReportIds;
+	final boolean deferBulkUploads;
+	final int uploadConcurrency;
+	final int uploadQueueSize;
+	final int breadcrumbs;
+	final int healthReportInterval;
+	final boolean frameDictionary;
+	final int stallTimeout;
+	final int stallSamples;
+	final int asyncQueueSize;
+	/** One of the <tt>ASYNC_OVERFLOW_*</tt> constants. */
+	final String asyncOverflowPolicy;
+	/** Sample rates by exception class, package prefix (ending with <tt>.</tt>) or <tt>*</tt>. */
+	final Map<String, Float> manualSampleRates;
+	final Map<String, Float> automaticSampleRates;
+
+	final int notificationIcon;
+	/** Resource ids of texts. <tt>0</tt> if the default text is used. */
+	final int notificationTitle;
+	final int notificationText;
+	final int notificationTickerText;
+
+	final int dialogIcon;
+	/** Resource ids of texts. <tt>0</tt> if the default text is used. */
+	final int dialogTitle;
+	final int dialogText;
+	final int dialogMessageHint;
+	final int dialogSendButton;
+	final int dialogCancelButton;
+
+	private final CharSequence applicationLabel;
+
+	/**
+	 * Returns the configuration of this process. The meta-data is only read
+	 * the first time this method is called.
+	 */
+	static synchronized ReporterConfig get(Context context) {
+		if (instance == null) {
+			Context applicationContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+			instance = new ReporterConfig(applicationContext);
+		}
+		return instance;
+	}
+
+	private ReporterConfig(Context context) {
+		PackageManager pm = context.getPackageManager();
+		ApplicationInfo info = null;
+		try {
+			info = pm.getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
+		} catch (NameNotFoundException e) {
+			// Should never happen
+			Log.e(TAG, "Could not read application info", e);
+		}
+		Bundle metaData = info != null && info.metaData != null ? info.metaData : new Bundle();
+		applicationLabel = info != null ? pm.getApplicationLabel(info) : "";
+
+		targetUrl = parseTargetUrl(context, metaData);
+		maximumRetryCount = getNonNegativeInt(metaData, META_DATA_MAXIMUM_RETRY_COUNT, DEFAULT_MAXIMUM_RETRY_COUNT);
+		retention = new ReportRetention(
+				getNonNegativeInt(metaData, META_DATA_MAXIMUM_PENDING_REPORTS, DEFAULT_MAXIMUM_PENDING_REPORTS),
+				getNonNegativeInt(metaData, META_DATA_MAXIMUM_PENDING_BYTES, DEFAULT_MAXIMUM_PENDING_BYTES),
+				getNonNegativeInt(metaData, META_DATA_MAXIMUM_REPORT_AGE, DEFAULT_MAXIMUM_REPORT_AGE) * 24l * 60 * 60 * 1000);
+		// 1 << 31 would overflow the backoff
+		maximumBackoffExponent = Math.min(30, getNonNegativeInt(metaData, META_DATA_MAXIMUM_BACKOFF_EXPONENT, DEFAULT_MAXIMUM_BACKOFF_EXPONENT));
+		reportOnFroyo = metaData.getBoolean(META_DATA_REPORT_ON_FROYO, DEFAULT_REPORT_ON_FROYO);
+		fieldsToSend = parseFieldsToSend(metaData.getString(META_DATA_FIELDS_TO_SEND));
+		batchSize = Math.max(1, getNonNegativeInt(metaData, META_DATA_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+		batchMaximumBytes = getNonNegativeInt(metaData, META_DATA_BATCH_MAXIMUM_BYTES, DEFAULT_BATCH_MAXIMUM_BYTES);
+		gzipRequests = metaData.getBoolean(META_DATA_GZIP_REQUESTS, DEFAULT_GZIP_REQUESTS);
+		binaryFormat = parseReportFormat(metaData.getString(META_DATA_REPORT_FORMAT));
+		rateLimitCapacity = getNonNegativeInt(metaData, META_DATA_RATE_LIMIT_CAPACITY, DEFAULT_RATE_LIMIT_CAPACITY);
+		rateLimitPerHour = getNonNegativeInt(metaData, META_DATA_RATE_LIMIT_PER_HOUR, DEFAULT_RATE_LIMIT_PER_HOUR);
+		fingerprintRateLimitCapacity = getNonNegativeInt(metaData, META_DATA_FINGERPRINT_RATE_LIMIT_CAPACITY, DEFAULT_FINGERPRINT_RATE_LIMIT_CAPACITY);
+		fingerprintRateLimitPerHour = getNonNegativeInt(metaData, META_DATA_FINGERPRINT_RATE_LIMIT_PER_HOUR, DEFAULT_FINGERPRINT_RATE_LIMIT_PER_HOUR);
+		passReportIds = metaData.getBoolean(META_DATA_PASS_REPORT_IDS, DEFAULT_PASS_REPORT_IDS);
+		deferBulkUploads = metaData.getBoolean(META_DATA_DEFER_BULK_UPLOADS, DEFAULT_DEFER_BULK_UPLOADS);
+		uploadConcurrency = Math.max(1, getNonNegativeInt(metaData, META_DATA_UPLOAD_CONCURRENCY, DEFAULT_UPLOAD_CONCURRENCY));
+		uploadQueueSize = Math.max(1, getNonNegativeInt(metaData, META_DATA_UPLOAD_QUEUE_SIZE, DEFAULT_UPLOAD_QUEUE_SIZE));
+		breadcrumbs = getNonNegativeInt(metaData, META_DATA_BREADCRUMBS, DEFAULT_BREADCRUMBS);
+		healthReportInterval = getNonNegativeInt(metaData, META_DATA_HEALTH_REPORT_INTERVAL, DEFAULT_HEALTH_REPORT_INTERVAL);
+		frameDictionary = metaData.getBoolean(META_DATA_FRAME_DICTIONARY, DEFAULT_FRAME_DICTIONARY);
+		stallTimeout = getNonNegativeInt(metaData, META_DATA_STALL_TIMEOUT, DEFAULT_STALL_TIMEOUT);
+		stallSamples = Math.max(1, getNonNegativeInt(metaData, META_DATA_STALL_SAMPLES, DEFAULT_STALL_SAMPLES));
+		asyncQueueSize = Math.max(1, getNonNegativeInt(metaData, META_DATA_ASYNC_QUEUE_SIZE, DEFAULT_ASYNC_QUEUE_SIZE));
+		asyncOverflowPolicy = parseAsyncOverflowPolicy(metaData.getString(META_DATA_ASYNC_OVERFLOW_POLICY));
+		manualSampleRates = parseSampleRates(META_DATA_MANUAL_SAMPLE_RATES, metaData.getString(META_DATA_MANUAL_SAMPLE_RATES));
+		automaticSampleRates = parseSampleRates(META_DATA_AUTOMATIC_SAMPLE_RATES, metaData.getString(META_DATA_AUTOMATIC_SAMPLE_RATES));
+		stackTraceCompactor = new StackTraceCompactor(
+				getNonNegativeInt(metaData, META_DATA_STACK_TRACE_MAXIMUM_FRAMES, DEFAULT_STACK_TRACE_MAXIMUM_FRAMES),
+				getNonNegativeInt(metaData, META_DATA_STACK_TRACE_MAXIMUM_CAUSES, DEFAULT_STACK_TRACE_MAXIMUM_CAUSES),
+				getNonNegativeInt(metaData, META_DATA_STACK_TRACE_MAXIMUM_BYTES, DEFAULT_STACK_TRACE_MAXIMUM_BYTES));
+
+		notificationIcon = getResource(metaData, META_DATA_NOTIFICATION_ICON, DEFAULT_NOTIFICATION_ICON);
+		notificationTitle = getResource(metaData, META_DATA_NOTIFICATION_TITLE, 0);
+		notificationText = getResource(metaData, META_DATA_NOTIFICATION_TEXT, 0);
+		notificationTickerText = getResource(metaData, META_DATA_NOTIFICATION_TICKER_TEXT, 0);
+
+		dialogIcon = getResource(metaData, META_DATA_DIALOG_ICON, DEFAULT_DIALOG_ICON);
+		dialogTitle = getResource(metaData, META_DATA_DIALOG_TITLE, 0);
+		dialogText = getResource(metaData, META_DATA_DIALOG_TEXT, 0);
+		dialogMessageHint = getResource(metaData, META_DATA_DIALOG_MESSAGE_HINT, 0);
+		dialogSendButton = getResource(metaData, META_DATA_DIALOG_SEND_BUTTON, DEFAULT_POSITIVE_BUTTON_TEXT);
+		dialogCancelButton = getResource(metaData, META_DATA_DIALOG_CANCEL_BUTTON, DEFAULT_NEGATIVE_BUTTON_TEXT);
+	}
+
+	boolean includes(ReportField field) {
+		return fieldsToSend.contains(field);
+	}
+
+	/**
+	 * Resolves a configured text and replaces the <tt>^1</tt> placeholder with the application label.
+	 *
+	 * @param resId The resource id of the text or <tt>0</tt> to use the default text
+	 */
+	CharSequence getText(Context context, int resId, CharSequence defaultText) {
+		CharSequence text = resId != 0 ? context.getText(resId) : defaultText;
+		return TextUtils.expandTemplate(text, applicationLabel);
+	}
+
+	private static String parseTargetUrl(Context context, Bundle metaData) {
+		Object url = metaData.get(META_DATA_TARGET_URL);
+		if (url instanceof String) {
+			return (String) url;
+		} else if (url instanceof Integer) {
+			return context.getString((Integer) url);
+		}
+		Log.e(TAG, META_DATA_TARGET_URL + " is undefined");
+		return null;
+	}
+
+	private static boolean parseReportFormat(String format) {
+		if (format == null) format = DEFAULT_REPORT_FORMAT;
+		if (format.equals(REPORT_FORMAT_BINARY)) return true;
+		if (!format.equals(REPORT_FORMAT_FORM)) {
+			Log.w(TAG, "Unknown " + META_DATA_REPORT_FORMAT + ": " + format);
+		}
+		return false;
+	}
+
+	private static String parseAsyncOverflowPolicy(String policy) {
+		if (policy == null) return DEFAULT_ASYNC_OVERFLOW_POLICY;
+		if (policy.equals(ASYNC_OVERFLOW_DROP_NEWEST) || policy.equals(ASYNC_OVERFLOW_DROP_OLDEST)
+				|| policy.equals(ASYNC_OVERFLOW_CALLER_RUNS)) {
+			return policy;
+		}
+		Log.w(TAG, "Unknown " + META_DATA_ASYNC_OVERFLOW_POLICY + ": " + policy);
+		return DEFAULT_ASYNC_OVERFLOW_POLICY;
+	}
+
+	/**
+	 * Parses rules like <tt>java.io.IOException=0.1,com.example.=0.5,*=1</tt>.
+	 * A trailing <tt>.*</tt> is the same as a trailing <tt>.</tt>.
+	 */
+	private static Map<String, Float> parseSampleRates(String key, String rules) {
+		Map<String, Float> result = new LinkedHashMap<String, Float>();
+		if (rules == null) return result;
+		StringTokenizer st = new StringTokenizer(rules, ",");
+		while (st.hasMoreTokens()) {
+			String rule = st.nextToken().trim();
+			int separator = rule.lastIndexOf('=');
+			try {
+				if (separator < 0) throw new NumberFormatException();
+				String prefix = rule.substring(0, separator).trim();
+				if (prefix.endsWith(".*")) prefix = prefix.substring(0, prefix.length() - 1);
+				float rate = Float.parseFloat(rule.substring(separator + 1).trim());
+				if (prefix.length() == 0 || rate < 0f || rate > 1f) throw new NumberFormatException();
+				result.put(prefix, rate);
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Invalid rule in " + key + " (expected <class or package.>=<rate between 0 and 1>): " + rule);
+			}
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	private static Set<ReportField> parseFieldsToSend(String fields) {
+		if (fields == null) fields = DEFAULT_FIELDS_TO_SEND;
+		EnumSet<ReportField> result = EnumSet.noneOf(ReportField.class);
+		StringTokenizer st = new StringTokenizer(fields, ",");
+		while (st.hasMoreTokens()) {
+			String name = st.nextToken().trim();
+			ReportField field = ReportField.forName(name);
+			if (field != null) {
+				result.add(field);
+			} else if (name.equals("all")) {
+				result = EnumSet.allOf(ReportField.class);
+				break;
+			} else {
+				Log.w(TAG, "Unknown field in " + META_DATA_FIELDS_TO_SEND + ": " + name);
+			}
+		}
+		return Collections.unmodifiableSet(result);
+	}
+
+	private static int getNonNegativeInt(Bundle metaData, String key, int defaultValue) {
+		Object value = metaData.get(key);
+		if (value == null) return defaultValue;
+		if (value instanceof Integer && (Integer) value >= 0) return (Integer) value;
+		Log.e(TAG, "Attribute " + key + " must be a non-negative integer");
+		return defaultValue;
+	}
+
+	private static int getResource(Bundle metaData, String key, int defaultValue) {
+		Object value = metaData.get(key);
+		if (value == null) return defaultValue;
+		if (value instanceof Integer) return (Integer) value;
+		Log.e(TAG, "Attribute " + key + " must be specified using the attribute android:resource");
+		return defaultValue;
+	}
+
+}
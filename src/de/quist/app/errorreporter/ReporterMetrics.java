@@ -0,0 +1,182 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+/**
+ * Snapshot of the counters and latency histograms of the error reporter
+ * itself, summed up over the app process and the process of the
+ * {@link ExceptionReportService}. Obtained via
+ * {@link ExceptionReporter#getMetrics()}. All values count from the
+ * installation of the app.
+ */
+public final class ReporterMetrics {
+
+	public enum Counter {
+		/** Exceptions handed to the reporter */
+		CAPTURED,
+		/** Reports left out by sampling, the rate limit or an overflowing asynchronous queue */
+		SUPPRESSED,
+		/** Reports written to the journal */
+		QUEUED,
+		/** Reports accepted by the server */
+		SENT,
+		/** Uploads which failed and have to be retried */
+		RETRIED,
+		/** Reports discarded after reaching the maximum retry count */
+		DISCARDED,
+		/** Reports rejected by the server */
+		REJECTED,
+		/** Bytes of request bodies written to the network */
+		BYTES_SENT
+	}
+
+	/**
+	 * Histogram of durations in microseconds with buckets growing in powers
+	 * of two: bucket 0 counts durations below 1 microsecond, bucket <tt>i</tt> those
+	 * from <tt>2^(i-1)</tt> to below <tt>2^i</tt> microseconds and the last
+	 * one everything above.
+	 */
+	public static final class Histogram {
+
+		static final int BUCKETS = 32;
+		static final int SIZE = BUCKETS + 2;
+
+		private final long[] values;
+		private final int offset;
+
+		private Histogram(long[] values, int offset) {
+			this.values = values;
+			this.offset = offset;
+		}
+
+		static int getBucket(long micros) {
+			return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, micros)));
+		}
+
+		public long getCount() {
+			return values[offset];
+		}
+
+		/**
+		 * @return The sum of all durations in microseconds
+		 */
+		public long getSum() {
+			return values[offset + 1];
+		}
+
+		public long getBucketCount(int bucket) {
+			return values[offset + 2 + bucket];
+		}
+
+		/**
+		 * @return The mean duration in microseconds or 0 if nothing has been recorded
+		 */
+		public long getMean() {
+			long count = getCount();
+			return count > 0 ? getSum() / count : 0;
+		}
+
+		/**
+		 * @param percentile Between 0 and 100
+		 * @return The upper bound in microseconds of the bucket containing
+		 *         the percentile or 0 if nothing has been recorded
+		 */
+		public long getPercentile(double percentile) {
+			long count = getCount();
+			if (count == 0) return 0;
+			long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+			long seen = 0;
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				seen += getBucketCount(bucket);
+				if (seen >= Math.max(1, rank)) return 1l << bucket;
+			}
+			return 1l << (BUCKETS - 1);
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + getCount() + " mean=" + getMean() + "us p50<" + getPercentile(50) + "us p99<" + getPercentile(99) + "us";
+		}
+
+	}
+
+	static final int COUNTERS = Counter.values().length;
+	static final int CAPTURE_TIME = COUNTERS;
+	static final int UPLOAD_LATENCY = CAPTURE_TIME + Histogram.SIZE;
+	static final int STALL_DURATION = UPLOAD_LATENCY + Histogram.SIZE;
+	static final int WATCHDOG_OVERHEAD = STALL_DURATION + Histogram.SIZE;
+	static final int SIZE = WATCHDOG_OVERHEAD + Histogram.SIZE;
+
+	private final long[] values;
+
+	ReporterMetrics(long[] values) {
+		this.values = values;
+	}
+
+	public long get(Counter counter) {
+		return values[counter.ordinal()];
+	}
+
+	/**
+	 * @return The time it took to create a report, from handing the
+	 *         exception to the reporter until the report has been queued
+	 */
+	public Histogram getCaptureTime() {
+		return new Histogram(values, CAPTURE_TIME);
+	}
+
+	/**
+	 * @return The duration of upload requests including the response
+	 */
+	public Histogram getUploadLatency() {
+		return new Histogram(values, UPLOAD_LATENCY);
+	}
+
+	/**
+	 * @return The duration of main thread stalls until they have been reported
+	 */
+	public Histogram getStallDuration() {
+		return new Histogram(values, STALL_DURATION);
+	}
+
+	/**
+	 * @return The time the stall watchdog spends per check, one check per
+	 *         half <tt>stallTimeout</tt>
+	 */
+	public Histogram getWatchdogOverhead() {
+		return new Histogram(values, WATCHDOG_OVERHEAD);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for (Counter counter : Counter.values()) {
+			result.append(counter.name().toLowerCase()).append('=').append(get(counter)).append(' ');
+		}
+		result.append("captureTime={").append(getCaptureTime()).append("} ");
+		result.append("uploadLatency={").append(getUploadLatency()).append("} ");
+		result.append("stallDuration={").append(getStallDuration()).append("} ");
+		result.append("watchdogOverhead={").append(getWatchdogOverhead()).append('}');
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decides which reports are created according to the sample rates of the
+ * configuration. The decision is derived from the id of the installation
+ * and the exception class, so an installation either always or never
+ * reports a certain exception and the share of installations reporting it
+ * equals the sample rate. The server can scale the counts back up with the
+ * <tt>sampleRate</tt> sent with every report.
+ */
+final class Sampler {
+
+	private static final String INSTALLATION_FILE_NAME = "errorreporter.installation";
+
+	private static String installationId;
+
+	private final String installation;
+	private final Map<String, Float> manualRates;
+	private final Map<String, Float> automaticRates;
+
+	Sampler(String installation, Map<String, Float> manualRates, Map<String, Float> automaticRates) {
+		this.installation = installation;
+		this.manualRates = manualRates;
+		this.automaticRates = automaticRates;
+	}
+
+	/**
+	 * @return The sample rate of the most specific rule for the exception class
+	 */
+	float getRate(String className, boolean manual) {
+		Map<String, Float> rates = manual ? manualRates : automaticRates;
+		String match = null;
+		for (String rule : rates.keySet()) {
+			boolean matches = rule.equals("*") || rule.equals(className) || (rule.endsWith(".") && className.startsWith(rule));
+			if (matches && (match == null || match.equals("*") || rule.length() > match.length())) {
+				match = rule;
+			}
+		}
+		return match != null ? rates.get(match) : 1f;
+	}
+
+	/**
+	 * @return Whether this installation reports exceptions of the given class
+	 */
+	boolean isSampled(String className, float rate) {
+		if (rate >= 1f) return true;
+		if (rate <= 0f) return false;
+		long hash = mix((installation + '|' + className).hashCode()) & 0xFFFFFFFFL;
+		return hash < (long) (rate * 0x100000000L);
+	}
+
+	/**
+	 * Spreads the bits of a hash code (finalizer of MurmurHash3).
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Returns a random id which is created once per installation of the
+	 * application and shared by all its processes.
+	 */
+	static synchronized String getInstallationId(File directory) {
+		if (installationId != null) return installationId;
+		File file = new File(directory, INSTALLATION_FILE_NAME);
+		try {
+			if (!file.exists()) {
+				File tmp = new File(directory, INSTALLATION_FILE_NAME + "." + UUID.randomUUID() + ".tmp");
+				OutputStream out = new FileOutputStream(tmp);
+				try {
+					out.write(UUID.randomUUID().toString().getBytes("UTF-8"));
+				} finally {
+					out.close();
+				}
+				// Another process might have been faster, then its id is used
+				if (file.exists() || !tmp.renameTo(file)) tmp.delete();
+			}
+			byte[] id = new byte[(int) file.length()];
+			InputStream in = new FileInputStream(file);
+			try {
+				int read = 0;
+				while (read < id.length) {
+					int count = in.read(id, read, id.length - read);
+					if (count < 0) break;
+					read += count;
+				}
+			} finally {
+				in.close();
+			}
+			installationId = new String(id, "UTF-8");
+		} catch (IOException e) {
+			// Sample this process only
+			installationId = UUID.randomUUID().toString();
+		}
+		return installationId;
+	}
+
+}
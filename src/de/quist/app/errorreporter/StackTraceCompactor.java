@@ -0,0 +1,298 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Formats stack traces like {@link Throwable#printStackTrace()}, but keeps
+ * them small. Repeated cycles of frames (e.g. of a {@link StackOverflowError})
+ * are folded into one cycle followed by
+ * <tt>... frames X..Y repeated N times</tt>, the number of frames per
+ * throwable and the depth of the cause and suppressed chain are limited and
+ * the result is cut to a maximum number of bytes.
+ */
+final class StackTraceCompactor {
+
+	private static final String LINE_SEPARATOR = "\n";
+	private static final String TRUNCATED = LINE_SEPARATOR + "\t... truncated" + LINE_SEPARATOR;
+
+	/**
+	 * Longest cycle of frames which is detected.
+	 */
+	private static final int MAXIMUM_CYCLE_LENGTH = 32;
+
+	/**
+	 * {@link Throwable#getSuppressed()} which is only available on Java 7 and later.
+	 */
+	private static final Method GET_SUPPRESSED;
+
+	static {
+		Method method = null;
+		try {
+			method = Throwable.class.getMethod("getSuppressed");
+		} catch (NoSuchMethodException e) {
+			// Older platform without suppressed exceptions
+		}
+		GET_SUPPRESSED = method;
+	}
+
+	private final int maximumFrames;
+	private final int maximumCauses;
+	private final int maximumBytes;
+	private final boolean fold;
+
+	/**
+	 * The limits, <tt>0</tt> disables a limit.
+	 *
+	 * @param maximumFrames Maximum number of frames per throwable
+	 * @param maximumCauses Maximum depth of the cause and suppressed chain
+	 * @param maximumBytes Maximum size of the UTF-8 encoded result
+	 */
+	StackTraceCompactor(int maximumFrames, int maximumCauses, int maximumBytes) {
+		this(maximumFrames, maximumCauses, maximumBytes, true);
+	}
+
+	private StackTraceCompactor(int maximumFrames, int maximumCauses, int maximumBytes, boolean fold) {
+		this.maximumFrames = maximumFrames;
+		this.maximumCauses = maximumCauses;
+		this.maximumBytes = maximumBytes;
+		this.fold = fold;
+	}
+
+	/**
+	 * A compacted stack trace.
+	 */
+	static final class Result {
+
+		final String stackTrace;
+		/** UTF-8 size of the stack trace as printed by {@link Throwable#printStackTrace()}. */
+		final long originalBytes;
+
+		private Result(String stackTrace, long originalBytes) {
+			this.stackTrace = stackTrace;
+			this.originalBytes = originalBytes;
+		}
+
+	}
+
+	Result compact(Throwable ex) {
+		// Only count what the complete stack trace would be
+		Output counter = new Output(null);
+		new StackTraceCompactor(0, 0, 0, false).print(counter, ex, null, "", "", 0);
+		long originalBytes = counter.bytes;
+
+		// Use fewer frames until the result fits into the budget
+		int frames = maximumFrames;
+		while (true) {
+			Output out = new Output(new StringBuilder(1024));
+			new StackTraceCompactor(frames, maximumCauses, 0, true).print(out, ex, null, "", "", 0);
+			String stackTrace = out.builder.toString();
+			if (maximumBytes <= 0 || utf8Length(stackTrace) <= maximumBytes) {
+				return new Result(stackTrace, originalBytes);
+			}
+			if (frames == 1) {
+				return new Result(truncate(stackTrace, maximumBytes), originalBytes);
+			}
+			// Without a frame limit start with a reasonable one
+			frames = frames > 1 ? frames / 2 : 256;
+		}
+	}
+
+	/**
+	 * Prints a throwable followed by its suppressed exceptions and causes.
+	 *
+	 * @param enclosing The frames of the enclosing throwable, <tt>null</tt> for the outermost one
+	 * @param depth Number of throwables printed before in the chain
+	 * @return The depth after printing this throwable and everything it contains
+	 */
+	private int print(Output out, Throwable ex, StackTraceElement[] enclosing, String caption, String prefix, int depth) {
+		return print(out, ex, enclosing, caption, prefix, depth, new IdentityHashMap<Throwable, Boolean>());
+	}
+
+	private int print(Output out, Throwable ex, StackTraceElement[] enclosing, String caption, String prefix, int depth, Map<Throwable, Boolean> printed) {
+		if (printed.containsKey(ex)) {
+			out.append(prefix).append(caption).append("[CIRCULAR REFERENCE: ").append(ex.toString()).append("]").append(LINE_SEPARATOR);
+			return depth;
+		}
+		printed.put(ex, Boolean.TRUE);
+		if (maximumCauses > 0 && depth >= maximumCauses) {
+			out.append(prefix).append("\t... cause chain truncated").append(LINE_SEPARATOR);
+			return depth;
+		}
+		depth++;
+		out.append(prefix).append(caption).append(ex.toString()).append(LINE_SEPARATOR);
+
+		StackTraceElement[] frames = ex.getStackTrace();
+		// Frames at the end which are the same as in the enclosing trace are omitted like printStackTrace does
+		int end = frames.length;
+		if (enclosing != null) {
+			int j = enclosing.length - 1;
+			while (end > 0 && j >= 0 && frames[end - 1].equals(enclosing[j])) {
+				end--;
+				j--;
+			}
+		}
+		printFrames(out, frames, end, prefix);
+		if (end < frames.length) {
+			out.append(prefix).append("\t... ").append(frames.length - end).append(" more").append(LINE_SEPARATOR);
+		}
+
+		for (Throwable suppressed : getSuppressed(ex)) {
+			depth = print(out, suppressed, frames, "Suppressed: ", prefix + "\t", depth, printed);
+		}
+		Throwable cause = ex.getCause();
+		if (cause != null) {
+			depth = print(out, cause, frames, "Caused by: ", prefix, depth, printed);
+		}
+		return depth;
+	}
+
+	private void printFrames(Output out, StackTraceElement[] frames, int end, String prefix) {
+		int printedFrames = 0;
+		int i = 0;
+		while (i < end) {
+			if (maximumFrames > 0 && printedFrames >= maximumFrames) {
+				out.append(prefix).append("\t... ").append(end - i).append(" frames omitted").append(LINE_SEPARATOR);
+				return;
+			}
+			int cycle = fold ? findCycle(frames, i, end) : 0;
+			if (cycle > 0) {
+				int repetitions = 1;
+				while (i + (repetitions + 1) * cycle <= end && isRepeated(frames, i, i + repetitions * cycle, cycle)) {
+					repetitions++;
+				}
+				for (int j = i; j < i + cycle; j++) {
+					out.append(prefix).append("\tat ").append(frames[j].toString()).append(LINE_SEPARATOR);
+				}
+				out.append(prefix).append("\t... frames ").append(i + 1).append("..").append(i + cycle)
+						.append(" repeated ").append(repetitions).append(" times").append(LINE_SEPARATOR);
+				printedFrames += cycle + 1;
+				i += repetitions * cycle;
+			} else {
+				out.append(prefix).append("\tat ").append(frames[i].toString()).append(LINE_SEPARATOR);
+				printedFrames++;
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * @return The length of the shortest cycle which starts at the given
+	 *         frame and is repeated at least once, or <tt>0</tt> if there is none
+	 */
+	private static int findCycle(StackTraceElement[] frames, int start, int end) {
+		for (int length = 1; length <= MAXIMUM_CYCLE_LENGTH && start + 2 * length <= end; length++) {
+			if (isRepeated(frames, start, start + length, length)) return length;
+		}
+		return 0;
+	}
+
+	private static boolean isRepeated(StackTraceElement[] frames, int first, int second, int length) {
+		for (int i = 0; i < length; i++) {
+			if (!frames[first + i].equals(frames[second + i])) return false;
+		}
+		return true;
+	}
+
+	private static Throwable[] getSuppressed(Throwable ex) {
+		if (GET_SUPPRESSED == null || ex instanceof CrashCapture.CapturedThrowable) return new Throwable[0];
+		try {
+			return (Throwable[]) GET_SUPPRESSED.invoke(ex);
+		} catch (Exception e) {
+			return new Throwable[0];
+		}
+	}
+
+	/**
+	 * Cuts the string so it fits into the given number of UTF-8 bytes including a marker.
+	 */
+	private static String truncate(String value, int maximumBytes) {
+		int budget = maximumBytes - TRUNCATED.length();
+		int bytes = 0;
+		int i = 0;
+		while (i < value.length()) {
+			int length = utf8Length(value, i);
+			if (bytes + length > budget) break;
+			bytes += length;
+			i += length == 4 ? 2 : 1;
+		}
+		return value.substring(0, i).concat(TRUNCATED);
+	}
+
+	/**
+	 * Counts the bytes of <tt>getBytes("UTF-8")</tt> without encoding the string.
+	 */
+	private static long utf8Length(String value) {
+		long bytes = 0;
+		int i = 0;
+		while (i < value.length()) {
+			int length = utf8Length(value, i);
+			bytes += length;
+			i += length == 4 ? 2 : 1;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return The UTF-8 bytes of the character at the index, 4 for a
+	 *         surrogate pair and 1 for an unpaired surrogate (encoded as '?')
+	 */
+	private static int utf8Length(String value, int index) {
+		char c = value.charAt(index);
+		if (c < 0x80) return 1;
+		if (c < 0x800) return 2;
+		if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) return 4;
+		if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) return 1;
+		return 3;
+	}
+
+	/**
+	 * Appends to a builder or, without one, only counts the UTF-8 bytes.
+	 */
+	private static final class Output {
+
+		final StringBuilder builder;
+		long bytes;
+
+		Output(StringBuilder builder) {
+			this.builder = builder;
+		}
+
+		Output append(String value) {
+			if (builder != null) {
+				builder.append(value);
+			} else {
+				bytes += utf8Length(value);
+			}
+			return this;
+		}
+
+		Output append(int value) {
+			return append(String.valueOf(value));
+		}
+
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+/**
+ * Stands in for a stall of the main thread detected by the
+ * {@link StallWatchdog}. Its stack trace is the one of the main thread
+ * during the stall.
+ */
+final class StallException extends Throwable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Duration of the stall in ms until it has been reported.
+	 */
+	final long duration;
+
+	/**
+	 * All samples of the main thread's stack, each preceded by the time
+	 * since the start of the stall.
+	 */
+	final String samples;
+
+	StallException(long duration, String samples) {
+		super("Main thread stalled for " + duration + "ms");
+		this.duration = duration;
+		this.samples = samples;
+	}
+
+}
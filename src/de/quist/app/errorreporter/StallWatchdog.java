@@ -0,0 +1,160 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Detects stalls of the main thread. A background thread posts a heartbeat
+ * to the main {@link Looper} and checks whether it has run after the
+ * timeout. If not, the stack of the main thread is sampled a few times while
+ * the stall lasts and reported as a {@link StallException}.
+ * <p>
+ * The overhead is bounded: at most one heartbeat is queued at a time, it
+ * is posted every half timeout and it only writes two fields. The time the
+ * watchdog thread spends on a check is recorded in the
+ * {@link ReporterMetrics}. Times are taken from
+ * {@link SystemClock#uptimeMillis()}, which stops while the device sleeps,
+ * so sleeping isn't mistaken for a stall.
+ */
+final class StallWatchdog extends Thread {
+
+	private static final String TAG = StallWatchdog.class.getSimpleName();
+
+	/**
+	 * Maximum number of frames per sample in the report.
+	 */
+	static final int MAXIMUM_SAMPLE_FRAMES = 32;
+
+	private final ExceptionReporter reporter;
+	private final Handler mainHandler;
+	private final Thread mainThread;
+	private final long timeout;
+	private final int samples;
+
+	private volatile boolean pending;
+	private long postedAt;
+
+	private final Runnable heartbeat = new Runnable() {
+
+		@Override
+		public void run() {
+			pending = false;
+		}
+
+	};
+
+	/**
+	 * @param timeout Time in ms after which an unanswered heartbeat is a stall
+	 * @param samples Number of stack samples taken during a stall
+	 */
+	StallWatchdog(ExceptionReporter reporter, long timeout, int samples) {
+		super(StallWatchdog.class.getSimpleName());
+		setDaemon(true);
+		this.reporter = reporter;
+		this.mainHandler = new Handler(Looper.getMainLooper());
+		this.mainThread = Looper.getMainLooper().getThread();
+		this.timeout = timeout;
+		this.samples = Math.max(1, samples);
+	}
+
+	@Override
+	public void run() {
+		long reported = -1;
+		try {
+			while (!isInterrupted()) {
+				long start = System.nanoTime();
+				long now = SystemClock.uptimeMillis();
+				if (!pending) {
+					postedAt = now;
+					pending = true;
+					mainHandler.post(heartbeat);
+				} else if (now - postedAt >= timeout && postedAt != reported) {
+					// Report every stall once, even if it never ends
+					reported = postedAt;
+					reportStall();
+				}
+				Metrics.get().recordWatchdogOverhead(System.nanoTime() - start);
+				Thread.sleep(timeout / 2);
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (Throwable e) {
+			Log.e(TAG, "Stall watchdog stopped", e);
+		}
+	}
+
+	/**
+	 * Samples the main thread's stack while the stall lasts and reports it.
+	 * The report's stack trace is the sample with the most frequent top
+	 * frame, which is where the main thread has been blocked.
+	 */
+	private void reportStall() throws InterruptedException {
+		long interval = timeout / 2 / samples;
+		StackTraceElement[][] traces = new StackTraceElement[samples][];
+		long[] times = new long[samples];
+		int count = 0;
+		while (count < samples && pending) {
+			if (count > 0) Thread.sleep(interval);
+			times[count] = SystemClock.uptimeMillis() - postedAt;
+			traces[count] = mainThread.getStackTrace();
+			count++;
+		}
+		long duration = SystemClock.uptimeMillis() - postedAt;
+		Metrics.get().recordStallDuration(duration * 1000 * 1000);
+
+		StackTraceElement[] representative = traces[0];
+		int best = 0;
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			int same = 0;
+			for (int j = 0; j < count; j++) {
+				if (hasSameTop(traces[i], traces[j])) same++;
+			}
+			if (same > best) {
+				best = same;
+				representative = traces[i];
+			}
+			if (i > 0) text.append('\n');
+			text.append("+").append(times[i]).append("ms");
+			for (int j = 0; j < traces[i].length && j < MAXIMUM_SAMPLE_FRAMES; j++) {
+				text.append("\n\tat ").append(traces[i][j]);
+			}
+			if (traces[i].length > MAXIMUM_SAMPLE_FRAMES) {
+				text.append("\n\t... ").append(traces[i].length - MAXIMUM_SAMPLE_FRAMES).append(" more");
+			}
+		}
+		Log.w(TAG, "Main thread stalled for " + duration + "ms");
+		StallException stall = new StallException(duration, text.toString());
+		stall.setStackTrace(representative);
+		reporter.reportStall(mainThread, stall);
+	}
+
+	private static boolean hasSameTop(StackTraceElement[] a, StackTraceElement[] b) {
+		if (a.length == 0 || b.length == 0) return a.length == b.length;
+		return a[0].equals(b[0]);
+	}
+
+}
@@ -0,0 +1,341 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Request body which encodes the reports while it is written to the
+ * connection. Neither the encoded body nor an encoded copy of a single value
+ * is held in memory, so the memory needed for sending only depends on the
+ * buffer size and not on the size of the reports.
+ * <p>
+ * A body whose length would only be known after compressing it is sent with
+ * chunked transfer encoding. Otherwise the length is determined by encoding
+ * the body once without keeping it, so servers which don't accept chunked
+ * requests still work.
+ */
+abstract class StreamingReportEntity extends AbstractHttpEntity {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+	private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private long contentLength = -1;
+
+	private StreamingReportEntity(String contentType, boolean chunked) {
+		setContentType(contentType);
+		setChunked(chunked);
+	}
+
+	/**
+	 * A form encoded report, like a <tt>UrlEncodedFormEntity</tt>.
+	 */
+	static StreamingReportEntity form(final List<NameValuePair> params) {
+		return new StreamingReportEntity(FORM_CONTENT_TYPE, false) {
+			@Override
+			void writeBody(OutputStream out) throws IOException {
+				boolean first = true;
+				for (NameValuePair param : params) {
+					if (!first) out.write('&');
+					first = false;
+					writeFormEncoded(out, param.getName());
+					if (param.getValue() != null) {
+						out.write('=');
+						writeFormEncoded(out, param.getValue());
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * A JSON array with an object per report. Fields without a value are
+	 * left out.
+	 */
+	static StreamingReportEntity json(final List<List<NameValuePair>> reports) {
+		return new StreamingReportEntity(JSON_CONTENT_TYPE, false) {
+			@Override
+			void writeBody(OutputStream out) throws IOException {
+				out.write('[');
+				for (int i = 0; i < reports.size(); i++) {
+					if (i > 0) out.write(',');
+					out.write('{');
+					boolean first = true;
+					for (NameValuePair param : reports.get(i)) {
+						if (param.getValue() == null) continue;
+						if (!first) out.write(',');
+						first = false;
+						writeJsonString(out, param.getName());
+						out.write(':');
+						writeJsonString(out, param.getValue());
+					}
+					out.write('}');
+				}
+				out.write(']');
+			}
+		};
+	}
+
+	/**
+	 * Reports in the {@link BinaryReportFormat}. A deflated body is sent
+	 * chunked, as deflating it twice isn't worth knowing its length.
+	 */
+	static StreamingReportEntity binary(final List<List<NameValuePair>> reports, final boolean deflate) {
+		return new StreamingReportEntity(BinaryReportFormat.CONTENT_TYPE, deflate) {
+			@Override
+			void writeBody(OutputStream out) throws IOException {
+				BinaryReportFormat.encode(reports, deflate, out);
+			}
+		};
+	}
+
+	/**
+	 * Writes the complete body. Called once per attempt to send it and once
+	 * more to determine the length of a body which isn't chunked.
+	 */
+	abstract void writeBody(OutputStream out) throws IOException;
+
+	@Override
+	public long getContentLength() {
+		if (isChunked()) return -1;
+		if (contentLength < 0) {
+			CountingOutputStream counter = new CountingOutputStream();
+			try {
+				writeBody(counter);
+			} catch (IOException e) {
+				// Never thrown when only counting
+				throw new IllegalStateException(e);
+			}
+			contentLength = counter.count;
+		}
+		return contentLength;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * Encodes the body into memory. The client only uses
+	 * {@link #writeTo(OutputStream)}, which encodes while sending.
+	 */
+	@Override
+	public InputStream getContent() throws IOException {
+		long length = getContentLength();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length > 0 ? (int) length : BUFFER_SIZE);
+		writeBody(bytes);
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		Buffer buffered = new Buffer(out);
+		writeBody(buffered);
+		buffered.flush();
+	}
+
+	/**
+	 * Writes the value like <tt>URLEncoder.encode(value, "UTF-8")</tt>
+	 * without creating an encoded copy of it.
+	 */
+	private static void writeFormEncoded(OutputStream out, String value) throws IOException {
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '.' || c == '-' || c == '*' || c == '_') {
+				out.write(c);
+			} else if (c == ' ') {
+				out.write('+');
+			} else {
+				int codePoint = c;
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+					codePoint = Character.toCodePoint(c, value.charAt(++i));
+				} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+					// Unpaired surrogates can't be encoded
+					codePoint = '?';
+				}
+				if (codePoint < 0x80) {
+					writePercentEncoded(out, codePoint);
+				} else if (codePoint < 0x800) {
+					writePercentEncoded(out, 0xC0 | (codePoint >> 6));
+					writePercentEncoded(out, 0x80 | (codePoint & 0x3F));
+				} else if (codePoint < 0x10000) {
+					writePercentEncoded(out, 0xE0 | (codePoint >> 12));
+					writePercentEncoded(out, 0x80 | ((codePoint >> 6) & 0x3F));
+					writePercentEncoded(out, 0x80 | (codePoint & 0x3F));
+				} else {
+					writePercentEncoded(out, 0xF0 | (codePoint >> 18));
+					writePercentEncoded(out, 0x80 | ((codePoint >> 12) & 0x3F));
+					writePercentEncoded(out, 0x80 | ((codePoint >> 6) & 0x3F));
+					writePercentEncoded(out, 0x80 | (codePoint & 0x3F));
+				}
+			}
+		}
+	}
+
+	private static void writePercentEncoded(OutputStream out, int b) throws IOException {
+		out.write('%');
+		out.write(HEX[(b >> 4) & 0x0F]);
+		out.write(HEX[b & 0x0F]);
+	}
+
+	/**
+	 * Writes the value as a quoted JSON string in UTF-8. Unpaired surrogates
+	 * are replaced by '?' like an <tt>OutputStreamWriter</tt> does.
+	 */
+	private static void writeJsonString(OutputStream out, String value) throws IOException {
+		out.write('"');
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+			case '\\':
+				out.write('\\');
+				out.write(c);
+				break;
+			case '\n':
+				out.write('\\');
+				out.write('n');
+				break;
+			case '\r':
+				out.write('\\');
+				out.write('r');
+				break;
+			case '\t':
+				out.write('\\');
+				out.write('t');
+				break;
+			default:
+				if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+					// Also escape the separators JavaScript doesn't allow in strings
+					out.write('\\');
+					out.write('u');
+					out.write(HEX[(c >> 12) & 0x0F]);
+					out.write(HEX[(c >> 8) & 0x0F]);
+					out.write(HEX[(c >> 4) & 0x0F]);
+					out.write(HEX[c & 0x0F]);
+				} else if (c < 0x80) {
+					out.write(c);
+				} else if (c < 0x800) {
+					out.write(0xC0 | (c >> 6));
+					out.write(0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, value.charAt(++i));
+					out.write(0xF0 | (codePoint >> 18));
+					out.write(0x80 | ((codePoint >> 12) & 0x3F));
+					out.write(0x80 | ((codePoint >> 6) & 0x3F));
+					out.write(0x80 | (codePoint & 0x3F));
+				} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+					out.write('?');
+				} else {
+					out.write(0xE0 | (c >> 12));
+					out.write(0x80 | ((c >> 6) & 0x3F));
+					out.write(0x80 | (c & 0x3F));
+				}
+			}
+		}
+		out.write('"');
+	}
+
+	/**
+	 * Like a <tt>BufferedOutputStream</tt>, but without synchronization, as
+	 * the body is mostly written byte by byte.
+	 */
+	static final class Buffer extends OutputStream {
+
+		private final OutputStream out;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int count;
+
+		Buffer(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) flushBuffer();
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len >= buffer.length) {
+				flushBuffer();
+				out.write(b, off, len);
+				return;
+			}
+			if (len > buffer.length - count) flushBuffer();
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushBuffer();
+			out.flush();
+		}
+
+		private void flushBuffer() throws IOException {
+			if (count > 0) {
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+
+	}
+
+	private static final class CountingOutputStream extends OutputStream {
+
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+	}
+
+}
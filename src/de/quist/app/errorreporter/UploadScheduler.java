@@ -0,0 +1,214 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.util.Random;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Decides when the {@link ExceptionReportService} uploads. Uploads wait for
+ * a network connection instead of retrying blindly, retries are spread by a
+ * random jitter so devices don't retry in lockstep after a server outage,
+ * uploads of the whole journal can be deferred until the device is on
+ * Wi-Fi or charging, and the server can pause all uploads with a
+ * <tt>Retry-After</tt> header.
+ * <p>
+ * Waiting for a network uses the {@link ConnectivityReceiver}, which is
+ * only enabled while there is something to upload. Without the receiver in
+ * the manifest, retries fall back to the back-off.
+ */
+final class UploadScheduler {
+
+	private static final String TAG = UploadScheduler.class.getSimpleName();
+
+	/**
+	 * Extra of {@link Intent#ACTION_BATTERY_CHANGED}, the constant is only available on API level 5.
+	 */
+	private static final String EXTRA_PLUGGED = "plugged";
+
+	private static final String PREFERENCES_NAME = UploadScheduler.class.getPackage().getName();
+	private static final String PREFERENCE_PAUSED_UNTIL = "pausedUntil";
+	private static final String PREFERENCE_LAST_HEALTH_REPORT = "lastHealthReport";
+	private static final String PREFERENCE_JOURNAL_RETRY_COUNT = "journalRetryCount";
+
+	/**
+	 * Longest pause a server can request.
+	 */
+	private static final long MAXIMUM_PAUSE = 24 * 60 * 60 * 1000;
+
+	private final Context context;
+	private final ReporterConfig config;
+	private final Random random = new Random();
+
+	UploadScheduler(Context context, ReporterConfig config) {
+		this.context = context;
+		this.config = config;
+	}
+
+	/**
+	 * @return Whether a network connection is available. <tt>true</tt> if
+	 *         the application is not allowed to read the network state.
+	 */
+	boolean isNetworkAvailable() {
+		NetworkInfo network = getActiveNetwork();
+		return network == null ? !canReadNetworkState() : network.isConnected();
+	}
+
+	/**
+	 * @return Whether the reports of the journal may be uploaded now
+	 */
+	boolean canUploadJournal() {
+		if (!isNetworkAvailable()) return false;
+		if (!config.deferBulkUploads) return true;
+		NetworkInfo network = getActiveNetwork();
+		boolean unmetered = network != null && network.getType() == ConnectivityManager.TYPE_WIFI;
+		return unmetered || isCharging();
+	}
+
+	/**
+	 * Enables the {@link ConnectivityReceiver}, which drains the journal once
+	 * uploading is possible.
+	 *
+	 * @return <tt>false</tt> if the receiver isn't declared in the manifest
+	 */
+	boolean waitForConnectivity() {
+		if (!setReceiverEnabled(context, true)) return false;
+		Log.d(TAG, "Waiting for connectivity to upload error reports");
+		return true;
+	}
+
+	/**
+	 * Schedules the operation after a back-off of 2^exponent seconds with a
+	 * random jitter of &plusmn;50%, but not before a pause requested by the
+	 * server is over.
+	 */
+	void scheduleRetry(PendingIntent operation, int exponent) {
+		long backoff = (1L << exponent) * 1000;
+		long delay = backoff / 2 + (long) (random.nextDouble() * backoff);
+		schedule(operation, Math.max(delay, getRemainingPause()));
+	}
+
+	/**
+	 * Counts a failed upload of the journal. The count is kept until the
+	 * journal has been uploaded, whichever way the upload was triggered.
+	 *
+	 * @return The number of failed uploads before this one
+	 */
+	int incrementJournalRetryCount() {
+		SharedPreferences preferences = getPreferences();
+		int count = preferences.getInt(PREFERENCE_JOURNAL_RETRY_COUNT, 0);
+		preferences.edit().putInt(PREFERENCE_JOURNAL_RETRY_COUNT, count + 1).commit();
+		return count;
+	}
+
+	void resetJournalRetryCount() {
+		SharedPreferences preferences = getPreferences();
+		if (preferences.contains(PREFERENCE_JOURNAL_RETRY_COUNT)) {
+			preferences.edit().remove(PREFERENCE_JOURNAL_RETRY_COUNT).commit();
+		}
+	}
+
+	void schedule(PendingIntent operation, long delay) {
+		AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		alarmMgr.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay, operation);
+	}
+
+	/**
+	 * Pauses all uploads as requested by the server.
+	 */
+	void pause(long duration) {
+		long pausedUntil = System.currentTimeMillis() + Math.min(duration, MAXIMUM_PAUSE);
+		getPreferences().edit().putLong(PREFERENCE_PAUSED_UNTIL, pausedUntil).commit();
+	}
+
+	/**
+	 * @return The time in ms until uploads may be resumed, <tt>0</tt> if they aren't paused
+	 */
+	long getRemainingPause() {
+		long remaining = getPreferences().getLong(PREFERENCE_PAUSED_UNTIL, 0) - System.currentTimeMillis();
+		// The clock might have been changed since
+		return Math.max(0, Math.min(remaining, MAXIMUM_PAUSE));
+	}
+
+	/**
+	 * @return Whether the health report interval has passed since the last
+	 *         health report has been sent
+	 */
+	boolean isHealthReportDue() {
+		if (config.healthReportInterval <= 0) return false;
+		long elapsed = System.currentTimeMillis() - getPreferences().getLong(PREFERENCE_LAST_HEALTH_REPORT, 0);
+		// A negative value means the clock has been changed since
+		return elapsed < 0 || elapsed >= config.healthReportInterval * 60l * 60 * 1000;
+	}
+
+	void setHealthReportSent() {
+		getPreferences().edit().putLong(PREFERENCE_LAST_HEALTH_REPORT, System.currentTimeMillis()).commit();
+	}
+
+	private SharedPreferences getPreferences() {
+		return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @return <tt>false</tt> if the receiver isn't declared in the manifest
+	 */
+	static boolean setReceiverEnabled(Context context, boolean enabled) {
+		ComponentName receiver = new ComponentName(context, ConnectivityReceiver.class);
+		int state = enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+		try {
+			context.getPackageManager().setComponentEnabledSetting(receiver, state, PackageManager.DONT_KILL_APP);
+			return true;
+		} catch (IllegalArgumentException e) {
+			// Not declared in the manifest
+			return false;
+		}
+	}
+
+	private NetworkInfo getActiveNetwork() {
+		if (!canReadNetworkState()) return null;
+		ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		return cm != null ? cm.getActiveNetworkInfo() : null;
+	}
+
+	private boolean canReadNetworkState() {
+		return context.checkCallingOrSelfPermission("android.permission.ACCESS_NETWORK_STATE") == PackageManager.PERMISSION_GRANTED;
+	}
+
+	private boolean isCharging() {
+		// The battery state is a sticky broadcast, so no receiver is needed
+		Intent battery = context.getApplicationContext().registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		return battery != null && battery.getIntExtra(EXTRA_PLUGGED, 0) != 0;
+	}
+
+}
@@ -0,0 +1,258 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * Checks that {@link BinaryReportFormat#decode(java.io.InputStream)} returns
+ * exactly what has been encoded, both by {@link BinaryReportFormat} and by the
+ * {@link StreamingReportEntity} the library sends. Then compares the size and
+ * encoding time of a typical report in all request formats. Runs on a plain
+ * JVM like the {@link ReportingBenchmark} and exits with status 1 if a round
+ * trip fails.
+ * <p>
+ * Usage: <tt>ReportFormatCheck</tt>
+ */
+public final class ReportFormatCheck {
+
+	private static final int TIMING_ITERATIONS = 5000;
+
+	/**
+	 * Umlauts, CJK characters and a character outside of the BMP (surrogate pair).
+	 */
+	private static final String NON_ASCII = "Gr\u00fc\u00dfe \u65e5\u672c\u8a9e \ud83d\udca5 ";
+
+	private static int failures;
+
+	public static void main(String[] args) throws Exception {
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 1024 * 1024) {
+			large.append(stackTrace(deepException(40)));
+		}
+		StringBuilder largeNonAscii = new StringBuilder();
+		while (largeNonAscii.length() < 1024 * 1024) {
+			largeNonAscii.append(NON_ASCII);
+		}
+
+		roundTrip("no reports", new ArrayList<List<NameValuePair>>());
+		roundTrip("empty report", Collections.singletonList(report()));
+		roundTrip("empty values", Collections.singletonList(report(ReportField.EX_MESSAGE.fieldName, "", ReportField.EX_CLASS.fieldName, null, "custom", "")));
+		roundTrip("empty name", Collections.singletonList(report("", "value")));
+		roundTrip("non-ASCII values", Collections.singletonList(report(ReportField.EX_MESSAGE.fieldName, NON_ASCII + "\u0000 \u2028",
+				ReportField.DEV_MODEL.fieldName, "\u00c9clair")));
+		roundTrip("non-ASCII names", Collections.singletonList(report("gr\u00f6\u00dfe", "1", NON_ASCII, "\ud83d\udca5")));
+		roundTrip("large values", Collections.singletonList(report(ReportField.EX_STACK_TRACE.fieldName, large.toString(), "custom", largeNonAscii.toString())));
+		roundTrip("many fields", Collections.singletonList(manyFields()));
+		List<List<NameValuePair>> several = new ArrayList<List<NameValuePair>>();
+		several.add(typicalReport());
+		several.add(report(ReportField.EX_MESSAGE.fieldName, ""));
+		several.add(typicalReport());
+		roundTrip("several reports", several);
+
+		System.out.println();
+		compareFormats(typicalReport());
+
+		if (failures > 0) {
+			System.out.println(failures + " round trips failed");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Encodes the reports with and without deflate, directly and through the
+	 * streaming entity, and checks that decoding returns the same fields.
+	 */
+	private static void roundTrip(String name, List<List<NameValuePair>> list) throws IOException {
+		for (boolean deflate : new boolean[] { false, true }) {
+			String label = name + (deflate ? " (deflated)" : "");
+			byte[] encoded = BinaryReportFormat.encode(list, deflate);
+			check(label, expected(list), BinaryReportFormat.decode(new ByteArrayInputStream(encoded)));
+			byte[] streamed = body(StreamingReportEntity.binary(list, deflate));
+			check(label + " streamed", expected(list), BinaryReportFormat.decode(new ByteArrayInputStream(streamed)));
+		}
+	}
+
+	private static void check(String label, List<Map<String, String>> expected, List<Map<String, String>> actual) {
+		// Maps are compared in order, as the decoder keeps the order of the fields
+		boolean passed = expected.size() == actual.size();
+		for (int i = 0; passed && i < expected.size(); i++) {
+			passed = new ArrayList<Map.Entry<String, String>>(expected.get(i).entrySet())
+					.equals(new ArrayList<Map.Entry<String, String>>(actual.get(i).entrySet()));
+		}
+		if (!passed) failures++;
+		System.out.println(String.format("%-36s %s", label, passed ? "ok" : "FAILED"));
+	}
+
+	private static List<Map<String, String>> expected(List<List<NameValuePair>> reports) {
+		List<Map<String, String>> result = new ArrayList<Map<String, String>>();
+		for (List<NameValuePair> report : reports) {
+			Map<String, String> fields = new LinkedHashMap<String, String>();
+			for (NameValuePair field : report) {
+				fields.put(field.getName(), field.getValue());
+			}
+			result.add(fields);
+		}
+		return result;
+	}
+
+	/**
+	 * Prints the body size (plain and gzipped) and the encoding time of a
+	 * single report in every format.
+	 */
+	private static void compareFormats(final List<NameValuePair> report) throws Exception {
+		final List<List<NameValuePair>> reports = new ArrayList<List<NameValuePair>>();
+		reports.add(report);
+		System.out.println(String.format("%-24s %10s %10s %10s", "Format", "bytes", "gzipped", "us/encode"));
+		compare(new Format("form") {
+			@Override
+			HttpEntity create() throws IOException {
+				return new UrlEncodedFormEntity(report, HTTP.UTF_8);
+			}
+		});
+		compare(new Format("formStreaming") {
+			@Override
+			HttpEntity create() {
+				return StreamingReportEntity.form(report);
+			}
+		});
+		compare(new Format("json") {
+			@Override
+			HttpEntity create() {
+				return StreamingReportEntity.json(reports);
+			}
+		});
+		compare(new Format("binary") {
+			@Override
+			HttpEntity create() {
+				return StreamingReportEntity.binary(reports, false);
+			}
+		});
+		compare(new Format("binaryDeflate") {
+			@Override
+			HttpEntity create() {
+				return StreamingReportEntity.binary(reports, true);
+			}
+		});
+	}
+
+	private static abstract class Format {
+
+		final String name;
+
+		Format(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Creates a new entity, as some entities encode only once.
+		 */
+		abstract HttpEntity create() throws IOException;
+
+	}
+
+	private static void compare(Format format) throws IOException {
+		byte[] body = body(format.create());
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+		gzip.write(body);
+		gzip.close();
+		// Warm-up
+		for (int i = 0; i < TIMING_ITERATIONS; i++) {
+			ReportingBenchmark.sink ^= body(format.create()).length;
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < TIMING_ITERATIONS; i++) {
+			ReportingBenchmark.sink ^= body(format.create()).length;
+		}
+		double micros = (System.nanoTime() - start) / 1000.0 / TIMING_ITERATIONS;
+		System.out.println(String.format("%-24s %10d %10d %10.1f", format.name, body.length, gzipped.size(), micros));
+	}
+
+	private static byte[] body(HttpEntity entity) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+		entity.writeTo(out);
+		return out.toByteArray();
+	}
+
+	private static List<NameValuePair> report(String... fields) {
+		List<NameValuePair> report = new ArrayList<NameValuePair>();
+		for (int i = 0; i < fields.length; i += 2) {
+			report.add(new BasicNameValuePair(fields[i], fields[i + 1]));
+		}
+		return report;
+	}
+
+	private static List<NameValuePair> manyFields() {
+		List<NameValuePair> report = new ArrayList<NameValuePair>();
+		for (int i = 0; i < 300; i++) {
+			report.add(new BasicNameValuePair("field" + i, String.valueOf(i)));
+		}
+		return report;
+	}
+
+	private static List<NameValuePair> typicalReport() {
+		Throwable ex = deepException(40);
+		return report(ReportField.EX_STACK_TRACE.fieldName, stackTrace(ex),
+				ReportField.EX_CLASS.fieldName, ex.getClass().getName(),
+				ReportField.EX_DATE_TIME.fieldName, "2010-11-01 12:00:00+0100",
+				ReportField.EX_MESSAGE.fieldName, ex.getMessage(),
+				ReportField.EX_THREAD_NAME.fieldName, "main",
+				ReportField.EX_FINGERPRINT.fieldName, Fingerprint.of(ex),
+				ReportField.APP_VERSION_CODE.fieldName, "42",
+				ReportField.APP_VERSION_NAME.fieldName, "1.0",
+				ReportField.APP_PACKAGE_NAME.fieldName, "com.example.app",
+				ReportField.DEV_AVAILABLE_MEMORY.fieldName, "123456789",
+				ReportField.DEV_TOTAL_MEMORY.fieldName, "987654321",
+				ReportField.DEV_MODEL.fieldName, "Nexus One",
+				ReportField.DEV_SDK.fieldName, "8",
+				ReportField.DEV_RELEASE_VERSION.fieldName, "2.2");
+	}
+
+	private static String stackTrace(Throwable ex) {
+		StringWriter writer = new StringWriter();
+		ex.printStackTrace(new PrintWriter(writer));
+		return writer.toString();
+	}
+
+	private static Throwable deepException(int depth) {
+		if (depth == 0) return new IllegalStateException("Deep exception");
+		return deepException(depth - 1);
+	}
+
+}
@@ -0,0 +1,308 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * Measures the code which runs on the crashing thread and while sending a
+ * report. Runs on a plain JVM: only the parts without Android dependencies
+ * are covered. Every benchmark is warmed up and then measured in several
+ * iterations of fixed duration. The results are throughput (ops/s) and the
+ * memory allocated per operation (as far as the JVM reports it).
+ * <p>
+ * Usage: <tt>ReportingBenchmark [name filter]</tt>
+ */
+public final class ReportingBenchmark {
+
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int MEASUREMENT_ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 1000L * 1000 * 1000;
+
+	private static final StackTraceCompactor COMPACTOR = new StackTraceCompactor(ReporterConfig.DEFAULT_STACK_TRACE_MAXIMUM_FRAMES,
+			ReporterConfig.DEFAULT_STACK_TRACE_MAXIMUM_CAUSES, ReporterConfig.DEFAULT_STACK_TRACE_MAXIMUM_BYTES);
+
+	/**
+	 * Prevents the JIT from removing the benchmarked code.
+	 */
+	static volatile int sink;
+
+	private static abstract class Benchmark {
+
+		final String name;
+
+		Benchmark(String name) {
+			this.name = name;
+		}
+
+		abstract Object run() throws Exception;
+
+	}
+
+	public static void main(String[] args) throws Exception {
+		String filter = args.length > 0 ? args[0] : "";
+		final Throwable deep = deepException(200);
+		final Throwable wide = wideException(10, 30);
+		final List<NameValuePair> params = reportParams(deep);
+		final List<List<NameValuePair>> reports = new ArrayList<List<NameValuePair>>();
+		reports.add(params);
+		File directory = new File(System.getProperty("java.io.tmpdir"), "errorreporter-benchmark");
+		directory.mkdirs();
+		final CrashCapture capture = new CrashCapture(directory);
+		final Thread thread = Thread.currentThread();
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new Benchmark("stackTrace.deep") {
+			@Override
+			Object run() {
+				return stackTrace(deep);
+			}
+		});
+		benchmarks.add(new Benchmark("stackTrace.wide") {
+			@Override
+			Object run() {
+				return stackTrace(wide);
+			}
+		});
+		benchmarks.add(new Benchmark("compactStackTrace.deep") {
+			@Override
+			Object run() {
+				return COMPACTOR.compact(deep);
+			}
+		});
+		benchmarks.add(new Benchmark("compactStackTrace.wide") {
+			@Override
+			Object run() {
+				return COMPACTOR.compact(wide);
+			}
+		});
+		benchmarks.add(new Benchmark("fingerprint.deep") {
+			@Override
+			Object run() {
+				return Fingerprint.of(deep);
+			}
+		});
+		benchmarks.add(new Benchmark("fingerprint.wide") {
+			@Override
+			Object run() {
+				return Fingerprint.of(wide);
+			}
+		});
+		benchmarks.add(new Benchmark("crashCapture.deep") {
+			@Override
+			Object run() throws IOException {
+				capture.capture(thread, deep, 0);
+				return capture;
+			}
+		});
+		benchmarks.add(new Benchmark("crashCapture.wide") {
+			@Override
+			Object run() throws IOException {
+				capture.capture(thread, wide, 0);
+				return capture;
+			}
+		});
+		benchmarks.add(new Benchmark("fieldLookup") {
+			@Override
+			Object run() {
+				int found = 0;
+				for (NameValuePair param : params) {
+					if (ReportField.forName(param.getName()) != null) found++;
+				}
+				return found;
+			}
+		});
+		benchmarks.add(new Benchmark("encode.form") {
+			@Override
+			Object run() throws IOException {
+				CountingOutputStream out = new CountingOutputStream();
+				new UrlEncodedFormEntity(params, HTTP.UTF_8).writeTo(out);
+				return out.count;
+			}
+		});
+		benchmarks.add(new Benchmark("encode.formStreaming") {
+			@Override
+			Object run() throws IOException {
+				CountingOutputStream out = new CountingOutputStream();
+				StreamingReportEntity.form(params).writeTo(out);
+				return out.count;
+			}
+		});
+		benchmarks.add(new Benchmark("encode.binary") {
+			@Override
+			Object run() throws IOException {
+				return BinaryReportFormat.encode(reports, false);
+			}
+		});
+		benchmarks.add(new Benchmark("encode.binaryDeflate") {
+			@Override
+			Object run() throws IOException {
+				return BinaryReportFormat.encode(reports, true);
+			}
+		});
+
+		benchmarks.add(new Benchmark("encode.binaryStreaming") {
+			@Override
+			Object run() throws IOException {
+				CountingOutputStream out = new CountingOutputStream();
+				StreamingReportEntity.binary(reports, false).writeTo(out);
+				return out.count;
+			}
+		});
+
+		System.out.println(String.format("%-24s %14s %10s %14s", "Benchmark", "ops/s", "error", "bytes/op"));
+		for (Benchmark benchmark : benchmarks) {
+			if (benchmark.name.contains(filter)) measure(benchmark);
+		}
+		capture.clear();
+	}
+
+	private static void measure(Benchmark benchmark) throws Exception {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			iteration(benchmark);
+		}
+		double[] throughput = new double[MEASUREMENT_ITERATIONS];
+		long operations = 0;
+		long allocated = 0;
+		for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+			long allocatedBefore = allocatedBytes();
+			long[] result = iteration(benchmark);
+			allocated += allocatedBytes() - allocatedBefore;
+			operations += result[0];
+			throughput[i] = result[0] * 1e9 / result[1];
+		}
+		double mean = 0;
+		for (double value : throughput) mean += value;
+		mean /= throughput.length;
+		double variance = 0;
+		for (double value : throughput) variance += (value - mean) * (value - mean);
+		double error = Math.sqrt(variance / (throughput.length - 1));
+		String bytesPerOperation = allocatedBytes() >= 0 ? String.format("%14.1f", allocated / (double) operations) : String.format("%14s", "n/a");
+		System.out.println(String.format("%-24s %14.1f %10.1f %s", benchmark.name, mean, error, bytesPerOperation));
+	}
+
+	/**
+	 * @return The number of operations and the elapsed nanoseconds
+	 */
+	private static long[] iteration(Benchmark benchmark) throws Exception {
+		long operations = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < 16; i++) {
+				sink ^= System.identityHashCode(benchmark.run());
+			}
+			operations += 16;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < ITERATION_NANOS);
+		return new long[] { operations, elapsed };
+	}
+
+	/**
+	 * @return The bytes allocated by the current thread or -1 if the JVM doesn't support it
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		try {
+			// com.sun.management.ThreadMXBean is not available on all JVMs
+			Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) method.invoke(bean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private static String stackTrace(Throwable ex) {
+		// The uncompacted stack trace for comparison
+		StringWriter writer = new StringWriter();
+		ex.printStackTrace(new PrintWriter(writer));
+		return writer.toString();
+	}
+
+	private static Throwable deepException(int depth) {
+		if (depth == 0) return new IllegalStateException("Deep exception");
+		return deepException(depth - 1);
+	}
+
+	private static Throwable wideException(int causes, int depth) {
+		Throwable cause = null;
+		for (int i = 0; i < causes; i++) {
+			cause = causedException(depth, cause, i);
+		}
+		return cause;
+	}
+
+	private static Throwable causedException(int depth, Throwable cause, int index) {
+		if (depth == 0) return new RuntimeException("Wrapped exception " + index, cause);
+		return causedException(depth - 1, cause, index);
+	}
+
+	private static List<NameValuePair> reportParams(Throwable ex) {
+		List<NameValuePair> params = new ArrayList<NameValuePair>();
+		params.add(new BasicNameValuePair(ReportField.EX_STACK_TRACE.fieldName, stackTrace(ex)));
+		params.add(new BasicNameValuePair(ReportField.EX_CLASS.fieldName, ex.getClass().getName()));
+		params.add(new BasicNameValuePair(ReportField.EX_DATE_TIME.fieldName, "2010-11-01 12:00:00+0100"));
+		params.add(new BasicNameValuePair(ReportField.EX_MESSAGE.fieldName, ex.getMessage()));
+		params.add(new BasicNameValuePair(ReportField.EX_THREAD_NAME.fieldName, "main"));
+		params.add(new BasicNameValuePair(ReportField.EX_FINGERPRINT.fieldName, Fingerprint.of(ex)));
+		params.add(new BasicNameValuePair(ReportField.APP_VERSION_CODE.fieldName, "42"));
+		params.add(new BasicNameValuePair(ReportField.APP_VERSION_NAME.fieldName, "1.0"));
+		params.add(new BasicNameValuePair(ReportField.APP_PACKAGE_NAME.fieldName, "com.example.app"));
+		params.add(new BasicNameValuePair(ReportField.DEV_AVAILABLE_MEMORY.fieldName, "123456789"));
+		params.add(new BasicNameValuePair(ReportField.DEV_TOTAL_MEMORY.fieldName, "987654321"));
+		params.add(new BasicNameValuePair(ReportField.DEV_MODEL.fieldName, "Nexus One"));
+		params.add(new BasicNameValuePair(ReportField.DEV_SDK.fieldName, "8"));
+		params.add(new BasicNameValuePair(ReportField.DEV_RELEASE_VERSION.fieldName, "2.2"));
+		return params;
+	}
+
+	private static final class CountingOutputStream extends OutputStream {
+
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+	}
+
+}
@@ -0,0 +1,269 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * Simulates a fleet of devices which upload their queued error reports at
+ * the same time, e.g. after an outage of the server. Every device sends its
+ * reports one by one through the {@link ReportTransport} and retries with
+ * the back-off of the {@link UploadScheduler} (scaled down to milliseconds)
+ * and <tt>Retry-After</tt>. Reports are built like the service builds them:
+ * compacted stack traces, fingerprints and the usual device fields.
+ * <p>
+ * By default an embedded {@link LocalCollector} is started which is down
+ * for the first seconds, so the run starts with a retry storm. The summary
+ * shows requests/s, bytes/s, request latency and the time until all
+ * backlogs are drained.
+ * <p>
+ * Usage: <tt>LoadGenerator [name=value ...]</tt> with the options
+ * <tt>devices</tt>, <tt>reports</tt> (per device), <tt>threads</tt>,
+ * <tt>outage</tt> (ms), <tt>retryAfter</tt> (s, -1 for none),
+ * <tt>backoff</tt> (ms), <tt>maximumExponent</tt>, <tt>jitter</tt>,
+ * <tt>format</tt> (<tt>form</tt> or <tt>binary</tt>), <tt>gzip</tt> and
+ * <tt>url</tt> (of an external collector).
+ */
+public final class LoadGenerator {
+
+	private final Map<String, String> options;
+	private final ScheduledExecutorService executor;
+	private final ReportTransport transport;
+	private final String url;
+	private final boolean binary;
+	private final boolean gzip;
+	private final boolean jitter;
+	private final long backoff;
+	private final int maximumExponent;
+	private final List<List<NameValuePair>> sampleReports;
+	private final CountDownLatch drained;
+	private final Random random = new Random();
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final LocalCollector.Latencies latencies = new LocalCollector.Latencies();
+
+	private LoadGenerator(Map<String, String> options, String url, int devices) {
+		this.options = options;
+		this.url = url;
+		int threads = getInt("threads", 64);
+		this.executor = Executors.newScheduledThreadPool(threads);
+		this.binary = "binary".equals(get("format", "form"));
+		this.gzip = Boolean.parseBoolean(get("gzip", "false"));
+		this.jitter = Boolean.parseBoolean(get("jitter", "true"));
+		this.backoff = getInt("backoff", 100);
+		this.maximumExponent = getInt("maximumExponent", 6);
+		this.transport = new ReportTransport(gzip && !binary, threads);
+		this.sampleReports = createSampleReports();
+		this.drained = new CountDownLatch(devices);
+	}
+
+	/**
+	 * A device with its queue of reports.
+	 */
+	private final class Device implements Runnable {
+
+		private final LinkedList<List<NameValuePair>> queue = new LinkedList<List<NameValuePair>>();
+		private int exponent;
+
+		Device(int reports) {
+			for (int i = 0; i < reports; i++) {
+				queue.add(sampleReports.get(random.nextInt(sampleReports.size())));
+			}
+		}
+
+		@Override
+		public void run() {
+			if (queue.isEmpty()) {
+				drained.countDown();
+				return;
+			}
+			long delay = 0;
+			try {
+				HttpEntity entity = createEntity(queue.getFirst());
+				requests.incrementAndGet();
+				bytes.addAndGet(entity.getContentLength());
+				long start = System.nanoTime();
+				ReportTransport.Response response = transport.post(url, entity);
+				latencies.add(System.nanoTime() - start);
+				int status = response.statusCode;
+				if (status >= 200 && status < 300) {
+					sent.incrementAndGet();
+					queue.removeFirst();
+					exponent = 0;
+				} else if (status == 429 || status >= 500) {
+					long retryAfter = response.getRetryAfter();
+					delay = Math.max(nextBackoff(), retryAfter);
+				} else {
+					dropped.incrementAndGet();
+					queue.removeFirst();
+				}
+			} catch (IOException e) {
+				delay = nextBackoff();
+			}
+			executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+		}
+
+		private long nextBackoff() {
+			retries.incrementAndGet();
+			long delay = backoff << exponent;
+			if (exponent < maximumExponent) exponent++;
+			// Same jitter as the UploadScheduler
+			return jitter ? delay / 2 + (long) (random.nextDouble() * delay) : delay;
+		}
+
+	}
+
+	private HttpEntity createEntity(List<NameValuePair> report) throws IOException {
+		if (binary) {
+			ByteArrayEntity entity = new ByteArrayEntity(BinaryReportFormat.encode(Collections.singletonList(report), gzip));
+			entity.setContentType(BinaryReportFormat.CONTENT_TYPE);
+			return entity;
+		}
+		return new UrlEncodedFormEntity(report, HTTP.UTF_8);
+	}
+
+	private void run(int devices, int reports) throws InterruptedException {
+		long start = System.nanoTime();
+		for (int i = 0; i < devices; i++) {
+			executor.execute(new Device(reports));
+		}
+		drained.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		executor.shutdown();
+		transport.shutdown();
+		System.out.println(String.format("devices: %d with %d reports each, backlog drained after %.2f s", devices, reports, seconds));
+		System.out.println(String.format("client: %d requests (%.1f/s), %d sent, %d retries, %d dropped, %d bytes (%.1f KB/s)",
+				requests.get(), requests.get() / seconds, sent.get(), retries.get(), dropped.get(), bytes.get(), bytes.get() / 1024.0 / seconds));
+		System.out.println("client request latency: " + latencies.summary());
+	}
+
+	/**
+	 * Builds reports of a few typical crashes the way the service does.
+	 */
+	private static List<List<NameValuePair>> createSampleReports() {
+		StackTraceCompactor compactor = new StackTraceCompactor(ReporterConfig.DEFAULT_STACK_TRACE_MAXIMUM_FRAMES,
+				ReporterConfig.DEFAULT_STACK_TRACE_MAXIMUM_CAUSES, ReporterConfig.DEFAULT_STACK_TRACE_MAXIMUM_BYTES);
+		List<Throwable> crashes = new ArrayList<Throwable>();
+		crashes.add(nested(20, new NullPointerException()));
+		crashes.add(new RuntimeException("Unable to start activity", nested(40, new IllegalStateException("Not attached"))));
+		crashes.add(recursion(2000));
+		crashes.add(new RuntimeException(new IOException("Connection reset", nested(10, new IllegalArgumentException("Invalid URL")))));
+		String[] models = { "Nexus One", "HTC Desire", "Milestone", "Galaxy S" };
+		List<List<NameValuePair>> reports = new ArrayList<List<NameValuePair>>();
+		for (Throwable crash : crashes) {
+			StackTraceCompactor.Result stackTrace = compactor.compact(crash);
+			for (String model : models) {
+				List<NameValuePair> params = new ArrayList<NameValuePair>();
+				params.add(new BasicNameValuePair(ReportField.EX_STACK_TRACE.fieldName, stackTrace.stackTrace));
+				params.add(new BasicNameValuePair(ReportField.EX_STACK_TRACE_SIZE.fieldName, String.valueOf(stackTrace.originalBytes)));
+				params.add(new BasicNameValuePair(ReportField.EX_CLASS.fieldName, crash.getClass().getName()));
+				params.add(new BasicNameValuePair(ReportField.EX_DATE_TIME.fieldName, "2010-11-01 12:00:00+0100"));
+				params.add(new BasicNameValuePair(ReportField.EX_MESSAGE.fieldName, crash.getMessage()));
+				params.add(new BasicNameValuePair(ReportField.EX_THREAD_NAME.fieldName, "main"));
+				params.add(new BasicNameValuePair(ReportField.EX_FINGERPRINT.fieldName, Fingerprint.of(crash)));
+				params.add(new BasicNameValuePair(ReportField.APP_VERSION_CODE.fieldName, "42"));
+				params.add(new BasicNameValuePair(ReportField.APP_VERSION_NAME.fieldName, "1.0"));
+				params.add(new BasicNameValuePair(ReportField.APP_PACKAGE_NAME.fieldName, "com.example.app"));
+				params.add(new BasicNameValuePair(ReportField.DEV_AVAILABLE_MEMORY.fieldName, "123456789"));
+				params.add(new BasicNameValuePair(ReportField.DEV_TOTAL_MEMORY.fieldName, "987654321"));
+				params.add(new BasicNameValuePair(ReportField.DEV_MODEL.fieldName, model));
+				params.add(new BasicNameValuePair(ReportField.DEV_SDK.fieldName, "8"));
+				params.add(new BasicNameValuePair(ReportField.DEV_RELEASE_VERSION.fieldName, "2.2"));
+				reports.add(params);
+			}
+		}
+		return reports;
+	}
+
+	private static Throwable nested(int depth, Throwable ex) {
+		if (depth == 0) {
+			ex.fillInStackTrace();
+			return ex;
+		}
+		return nested(depth - 1, ex);
+	}
+
+	private static Throwable recursion(int depth) {
+		if (depth == 0) return new StackOverflowError();
+		return recursion(depth - 1);
+	}
+
+	private String get(String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	private int getInt(String name, int defaultValue) {
+		return Integer.parseInt(get(name, String.valueOf(defaultValue)));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator < 0) throw new IllegalArgumentException("Expected name=value: " + arg);
+			options.put(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+		int devices = Integer.parseInt(options.containsKey("devices") ? options.get("devices") : "2000");
+		int reports = Integer.parseInt(options.containsKey("reports") ? options.get("reports") : "3");
+
+		LocalCollector collector = null;
+		String url = options.get("url");
+		if (url == null) {
+			collector = new LocalCollector(0, 16);
+			collector.start();
+			url = collector.getUrl();
+			int outage = Integer.parseInt(options.containsKey("outage") ? options.get("outage") : "3000");
+			int retryAfter = Integer.parseInt(options.containsKey("retryAfter") ? options.get("retryAfter") : "-1");
+			if (outage > 0) collector.simulateOutage(outage, retryAfter);
+		}
+		new LoadGenerator(options, url, devices).run(devices, reports);
+		if (collector != null) {
+			System.out.print(collector.summary());
+			collector.stop();
+		}
+	}
+
+}
@@ -0,0 +1,353 @@
+/*
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * You can obtain a copy of the license at LICENSE.txt
+ * or http://www.opensource.org/licenses/cddl1.php.
+ * See the License for the specific language governing permissions
+ * and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ *
+ * Copyright 2010 Tom Quist
+ * All rights reserved Use is subject to license terms.
+ */
+package de.quist.app.errorreporter;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for an error report server which runs on a plain JVM. It
+ * accepts everything the {@link ExceptionReportService} sends: form encoded
+ * single reports, JSON batches and the {@link BinaryReportFormat}, each
+ * optionally gzip compressed, with stack traces in full or encoded against a
+ * frame dictionary. Reports without <tt>exStackTrace</tt> or
+ * <tt>exClass</tt> are rejected with 400, reports referencing unknown frames
+ * with 409 and health reports are only counted. It counts requests, reports
+ * and bytes and measures how long handling a request takes. An outage can be
+ * simulated, during which every request is answered with 503.
+ * <p>
+ * Usage: <tt>LocalCollector [port]</tt>
+ */
+public final class LocalCollector {
+
+	private static final String[] REQUIRED_FIELDS = { ReportField.EX_STACK_TRACE.fieldName, ReportField.EX_CLASS.fieldName };
+
+	private final HttpServer server;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong reports = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong healthReports = new AtomicLong();
+	private final AtomicLong resyncs = new AtomicLong();
+	private final FrameDictionaryDecoder frameDecoder = new FrameDictionaryDecoder();
+	private final AtomicLong unavailable = new AtomicLong();
+	private final Latencies latencies = new Latencies();
+	private final Map<String, AtomicLong> exceptionClasses = new LinkedHashMap<String, AtomicLong>();
+	private final long started = System.nanoTime();
+	private volatile long outageUntil;
+	private volatile int outageRetryAfter = -1;
+
+	public LocalCollector(int port, int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+		server.setExecutor(Executors.newFixedThreadPool(threads));
+		server.createContext("/", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				long start = System.nanoTime();
+				try {
+					handleReport(exchange);
+				} finally {
+					exchange.close();
+					latencies.add(System.nanoTime() - start);
+				}
+			}
+
+		});
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		((java.util.concurrent.ExecutorService) server.getExecutor()).shutdownNow();
+	}
+
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * Answers all requests with 503 for the given time.
+	 *
+	 * @param retryAfter Seconds to send as <tt>Retry-After</tt>, -1 for none
+	 */
+	public void simulateOutage(long millis, int retryAfter) {
+		outageRetryAfter = retryAfter;
+		outageUntil = System.currentTimeMillis() + millis;
+	}
+
+	private void handleReport(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		byte[] body = readFully(exchange.getRequestBody());
+		bytes.addAndGet(body.length);
+		if (System.currentTimeMillis() < outageUntil) {
+			unavailable.incrementAndGet();
+			if (outageRetryAfter >= 0) exchange.getResponseHeaders().set("Retry-After", String.valueOf(outageRetryAfter));
+			respond(exchange, 503, "");
+			return;
+		}
+		InputStream in = new ByteArrayInputStream(body);
+		if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			in = new GZIPInputStream(in);
+		}
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		List<Map<String, String>> received;
+		try {
+			if (contentType != null && contentType.startsWith(BinaryReportFormat.CONTENT_TYPE)) {
+				received = BinaryReportFormat.decode(in);
+			} else if (contentType != null && contentType.startsWith("application/json")) {
+				received = parseJsonBatch(new String(readFully(in), "UTF-8"));
+			} else {
+				received = new ArrayList<Map<String, String>>();
+				received.add(parseForm(new String(readFully(in), "UTF-8")));
+			}
+		} catch (IOException e) {
+			rejected.incrementAndGet();
+			respond(exchange, 400, e.getMessage());
+			return;
+		}
+		if (received.size() == 1 && received.get(0).containsKey("healthReport")) {
+			healthReports.incrementAndGet();
+			respond(exchange, 200, "");
+			return;
+		}
+		StringBuilder acceptedIds = new StringBuilder("[");
+		for (Map<String, String> report : received) {
+			String frames = report.get(ReportField.EX_STACK_TRACE_FRAMES.fieldName);
+			if (frames != null) {
+				String stackTrace;
+				try {
+					stackTrace = frameDecoder.decode(report.get(ReportField.FRAME_DICTIONARY.fieldName), frames);
+				} catch (IOException e) {
+					rejected.incrementAndGet();
+					respond(exchange, 400, e.getMessage());
+					return;
+				}
+				if (stackTrace == null) {
+					resyncs.incrementAndGet();
+					respond(exchange, 409, "Unknown frame");
+					return;
+				}
+				report.put(ReportField.EX_STACK_TRACE.fieldName, stackTrace);
+			}
+			for (String field : REQUIRED_FIELDS) {
+				if (report.get(field) == null) {
+					rejected.incrementAndGet();
+					respond(exchange, 400, "Missing field " + field);
+					return;
+				}
+			}
+			count(report.get(ReportField.EX_CLASS.fieldName));
+			String reportId = report.get("reportId");
+			if (reportId != null) {
+				if (acceptedIds.length() > 1) acceptedIds.append(',');
+				acceptedIds.append('"').append(reportId).append('"');
+			}
+		}
+		reports.addAndGet(received.size());
+		respond(exchange, 200, acceptedIds.append(']').toString());
+	}
+
+	private synchronized void count(String exceptionClass) {
+		AtomicLong count = exceptionClasses.get(exceptionClass);
+		if (count == null) {
+			count = new AtomicLong();
+			exceptionClasses.put(exceptionClass, count);
+		}
+		count.incrementAndGet();
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+		if (bytes.length > 0) {
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		}
+	}
+
+	static Map<String, String> parseForm(String body) throws IOException {
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		for (String pair : body.split("&")) {
+			if (pair.length() == 0) continue;
+			int separator = pair.indexOf('=');
+			String name = URLDecoder.decode(separator >= 0 ? pair.substring(0, separator) : pair, "UTF-8");
+			String value = separator >= 0 ? URLDecoder.decode(pair.substring(separator + 1), "UTF-8") : null;
+			fields.put(name, value);
+		}
+		return fields;
+	}
+
+	/**
+	 * Parses the batch format: an array of objects whose values are strings.
+	 */
+	static List<Map<String, String>> parseJsonBatch(String body) throws IOException {
+		List<Map<String, String>> result = new ArrayList<Map<String, String>>();
+		int[] position = { skipWhitespace(body, 0) };
+		expect(body, position, '[');
+		while (peek(body, position) != ']') {
+			if (!result.isEmpty()) expect(body, position, ',');
+			expect(body, position, '{');
+			Map<String, String> report = new LinkedHashMap<String, String>();
+			while (peek(body, position) != '}') {
+				if (!report.isEmpty()) expect(body, position, ',');
+				String name = parseJsonString(body, position);
+				expect(body, position, ':');
+				report.put(name, parseJsonString(body, position));
+			}
+			expect(body, position, '}');
+			result.add(report);
+		}
+		return result;
+	}
+
+	private static String parseJsonString(String body, int[] position) throws IOException {
+		expect(body, position, '"');
+		StringBuilder value = new StringBuilder();
+		int i = position[0];
+		while (i < body.length() && body.charAt(i) != '"') {
+			char c = body.charAt(i++);
+			if (c == '\\' && i < body.length()) {
+				char escaped = body.charAt(i++);
+				switch (escaped) {
+				case 'n': value.append('\n'); break;
+				case 'r': value.append('\r'); break;
+				case 't': value.append('\t'); break;
+				case 'b': value.append('\b'); break;
+				case 'f': value.append('\f'); break;
+				case 'u':
+					if (i + 4 > body.length()) throw new IOException("Invalid escape");
+					value.append((char) Integer.parseInt(body.substring(i, i + 4), 16));
+					i += 4;
+					break;
+				default: value.append(escaped);
+				}
+			} else {
+				value.append(c);
+			}
+		}
+		if (i >= body.length()) throw new IOException("Unterminated string");
+		position[0] = skipWhitespace(body, i + 1);
+		return value.toString();
+	}
+
+	private static char peek(String body, int[] position) throws IOException {
+		if (position[0] >= body.length()) throw new IOException("Unexpected end of JSON");
+		return body.charAt(position[0]);
+	}
+
+	private static void expect(String body, int[] position, char expected) throws IOException {
+		if (peek(body, position) != expected) throw new IOException("Expected '" + expected + "' at " + position[0]);
+		position[0] = skipWhitespace(body, position[0] + 1);
+	}
+
+	private static int skipWhitespace(String body, int position) {
+		while (position < body.length() && Character.isWhitespace(body.charAt(position))) position++;
+		return position;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	long getReports() {
+		return reports.get();
+	}
+
+	/**
+	 * @return A summary of everything received so far
+	 */
+	public synchronized String summary() {
+		double seconds = (System.nanoTime() - started) / 1e9;
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format("collector: %d requests (%.1f/s), %d reports (%.1f/s), %d bytes (%.1f KB/s), %d rejected, %d unavailable, %d health reports, %d frame dictionary resyncs%n",
+				requests.get(), requests.get() / seconds, reports.get(), reports.get() / seconds,
+				bytes.get(), bytes.get() / 1024.0 / seconds, rejected.get(), unavailable.get(), healthReports.get(), resyncs.get()));
+		summary.append("collector handling time: ").append(latencies.summary()).append(String.format("%n"));
+		for (Map.Entry<String, AtomicLong> entry : exceptionClasses.entrySet()) {
+			summary.append(String.format("  %8d %s%n", entry.getValue().get(), entry.getKey()));
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * Latencies in nanoseconds, summarized as percentiles.
+	 */
+	static final class Latencies {
+
+		private long[] values = new long[1024];
+		private int count;
+
+		synchronized void add(long nanos) {
+			if (count == values.length) values = Arrays.copyOf(values, count * 2);
+			values[count++] = nanos;
+		}
+
+		synchronized String summary() {
+			if (count == 0) return "n/a";
+			long[] sorted = Arrays.copyOf(values, count);
+			Arrays.sort(sorted);
+			return String.format("p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms",
+					sorted[count / 2] / 1e6, sorted[(int) (count * 0.95)] / 1e6, sorted[(int) (count * 0.99)] / 1e6, sorted[count - 1] / 1e6);
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		final LocalCollector collector = new LocalCollector(port, 16);
+		collector.start();
+		System.out.println("Collecting error reports on " + collector.getUrl());
+		while (true) {
+			Thread.sleep(10 * 1000);
+			System.out.print(collector.summary());
+		}
+	}
+
+}